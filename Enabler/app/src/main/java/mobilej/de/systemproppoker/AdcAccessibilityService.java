@@ -0,0 +1,221 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package mobilej.de.systemproppoker;
+
+import android.accessibilityservice.AccessibilityService;
+import android.annotation.TargetApi;
+import android.content.Intent;
+import android.graphics.Rect;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Build;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Answers queries for the bounds of views by their resource id.
+ *
+ * The plugin connects to the abstract socket "adc_views" (via adb forward) and sends the number of patterns as an
+ * int followed by the patterns (modified UTF-8 as written by DataOutputStream.writeUTF). Patterns support the
+ * wildcards "*" and "?", without a ":" any package matches. The answer is the number of matching views as an int
+ * followed by resource id, left, top, right and bottom of every view.
+ *
+ * Patterns without wildcards are looked up directly by the framework, so only the matching nodes are ever
+ * transferred to this service. Resource ids of views are only reported since Android 4.3.
+ *
+ * Only connections made through adb (root or shell user) are answered, other apps could otherwise read the
+ * screen content of every app.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AdcAccessibilityService extends AccessibilityService {
+
+    private static final String TAG = "adcviews";
+    private static final String SOCKET_NAME = "adc_views";
+    private static final int MAX_PATTERNS = 256;
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+
+    private LocalServerSocket serverSocket;
+
+    @Override
+    protected void onServiceConnected() {
+        super.onServiceConnected();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, TAG).start();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // ignored
+        }
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+    }
+
+    @Override
+    public void onInterrupt() {
+    }
+
+    private void serve() {
+        try {
+            serverSocket = new LocalServerSocket(SOCKET_NAME);
+            while (true) {
+                LocalSocket socket = serverSocket.accept();
+                try {
+                    int uid = socket.getPeerCredentials().getUid();
+                    if (uid != ROOT_UID && uid != SHELL_UID) {
+                        Log.w(TAG, "Rejected connection from uid " + uid);
+                        continue;
+                    }
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    int count = in.readInt();
+                    if (count < 0 || count > MAX_PATTERNS) {
+                        continue;
+                    }
+                    List<String> patterns = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        patterns.add(in.readUTF());
+                    }
+
+                    Map<String, Rect> matches = lookup(patterns);
+
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(reply);
+                    out.writeInt(matches.size());
+                    for (Map.Entry<String, Rect> entry : matches.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue().left);
+                        out.writeInt(entry.getValue().top);
+                        out.writeInt(entry.getValue().right);
+                        out.writeInt(entry.getValue().bottom);
+                    }
+                    out.flush();
+
+                    BufferedOutputStream socketOut = new BufferedOutputStream(socket.getOutputStream());
+                    reply.writeTo(socketOut);
+                    socketOut.flush();
+                } catch (IOException e) {
+                    Log.i(TAG, "Failed to answer query: " + e);
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Socket closed: " + e);
+        }
+    }
+
+    private Map<String, Rect> lookup(List<String> patterns) {
+        Map<String, Rect> matches = new LinkedHashMap<>();
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return matches;
+        }
+
+        List<Pattern> wildcardPatterns = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (pattern.contains(":") && !pattern.contains("*") && !pattern.contains("?")) {
+                List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(pattern);
+                for (AccessibilityNodeInfo node : nodes) {
+                    addMatch(matches, node);
+                    node.recycle();
+                }
+            } else {
+                wildcardPatterns.add(toRegex(pattern.contains(":") ? pattern : "*:" + pattern));
+            }
+        }
+
+        if (!wildcardPatterns.isEmpty()) {
+            collectMatches(root, wildcardPatterns, matches);
+        }
+        root.recycle();
+        return matches;
+    }
+
+    private static void collectMatches(AccessibilityNodeInfo node, List<Pattern> patterns, Map<String, Rect> matches) {
+        String resId = node.getViewIdResourceName();
+        if (resId != null && !matches.containsKey(resId)) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(resId).matches()) {
+                    addMatch(matches, node);
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = node.getChild(i);
+            if (child != null) {
+                collectMatches(child, patterns, matches);
+                child.recycle();
+            }
+        }
+    }
+
+    private static void addMatch(Map<String, Rect> matches, AccessibilityNodeInfo node) {
+        String resId = node.getViewIdResourceName();
+        if (resId != null && !matches.containsKey(resId)) {
+            Rect bounds = new Rect();
+            node.getBoundsInScreen(bounds);
+            matches.put(resId, bounds);
+        }
+    }
+
+    /**
+     * Same wildcards as the plugin uses: "*" any number of chars, "?" at most one char
+     */
+    private static Pattern toRegex(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : wildcard.toCharArray()) {
+            switch (c) {
+                case '?':
+                    regex.append(".?");
+                    break;
+                case '*':
+                    regex.append(".*");
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package mobilej.de.systemproppoker;
+
+import android.inputmethodservice.InputMethodService;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.InputType;
+import android.util.Log;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input method which commits whole blocks of text at once.
+ *
+ * The plugin connects to the abstract socket "adc_ime" (via adb forward) and sends the length of the UTF-8 encoded
+ * text as an int followed by the text. The answer is a single byte: 1 if the text was committed, 0 if there is no
+ * editor to commit to (yet). Only connections made through adb (root or shell user) are accepted, other apps could
+ * otherwise type into whatever has the focus.
+ */
+public class AdcInputMethodService extends InputMethodService {
+
+    private static final String TAG = "adcime";
+    private static final String SOCKET_NAME = "adc_ime";
+    private static final int MAX_TEXT_LENGTH = 16 * 1024 * 1024;
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile boolean editorActive = false;
+    private LocalServerSocket serverSocket;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, TAG).start();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    @Override
+    public void onStartInput(EditorInfo attribute, boolean restarting) {
+        super.onStartInput(attribute, restarting);
+        editorActive = attribute != null && attribute.inputType != InputType.TYPE_NULL;
+    }
+
+    @Override
+    public void onFinishInput() {
+        super.onFinishInput();
+        editorActive = false;
+    }
+
+    private void serve() {
+        try {
+            serverSocket = new LocalServerSocket(SOCKET_NAME);
+            while (true) {
+                LocalSocket socket = serverSocket.accept();
+                try {
+                    int uid = socket.getPeerCredentials().getUid();
+                    if (uid != ROOT_UID && uid != SHELL_UID) {
+                        Log.w(TAG, "Rejected connection from uid " + uid);
+                        continue;
+                    }
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_TEXT_LENGTH) {
+                        continue;
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+
+                    OutputStream out = socket.getOutputStream();
+                    out.write(commit(new String(bytes, "UTF-8")) ? 1 : 0);
+                    out.flush();
+                } catch (IOException e) {
+                    Log.i(TAG, "Failed to receive text: " + e);
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Socket closed: " + e);
+        }
+    }
+
+    private boolean commit(final String text) {
+        if (!editorActive) {
+            return false;
+        }
+
+        final boolean[] result = {false};
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                InputConnection ic = getCurrentInputConnection();
+                result[0] = ic != null && ic.commitText(text, 1);
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return result[0];
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.TimeoutException;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Asks the accessibility service of the enabler app for the bounds of the views matching resource id patterns.
+ *
+ * Only the matching views are transferred, the patterns are evaluated on the device. If the service isn't
+ * enabled yet it gets enabled on the first lookup (keeping other enabled accessibility services) and stays enabled,
+ * so only the first lookup waits for the service to get bound. {@link #restoreAll()} puts back the previous
+ * settings once the session ends.
+ */
+class AccessibilityViewLookup {
+
+    static final String SERVICE_ID = "mobilej.de.systemproppoker/.AdcAccessibilityService";
+
+    private static final String SOCKET_NAME = "adc_views";
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    private static final long READ_TIMEOUT_MS = 5000;
+    private static final long RETRY_INTERVAL_MS = 100;
+
+    /**
+     * Devices on which the service got enabled by a lookup, by serial
+     */
+    private static final Map<String, EnabledService> enabledBySerial = new ConcurrentHashMap<>();
+
+    private static class EnabledService {
+        final IDevice device;
+        final String[] previous;
+
+        EnabledService(IDevice device, String[] previous) {
+            this.device = device;
+            this.previous = previous;
+        }
+    }
+
+    private AccessibilityViewLookup() {
+    }
+
+    /**
+     * @param executor runs the shell commands and limits waiting for the service to its deadline
+     * @return resource ids of the matching views mapped to their bounds, null if the service isn't available
+     */
+    static Map<String, Rectangle> lookup(ShellExecutor executor, IDevice device, Collection<String> patterns) {
+        try {
+            int port = findFreePort();
+            device.createForward(port, SOCKET_NAME, IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+            try {
+                Map<String, Rectangle> result = query(executor, port, patterns);
+                if (result == null) {
+                    String[] previous = enableService(executor, device);
+                    if (previous != null) {
+                        enabledBySerial.put(device.getSerialNumber(), new EnabledService(device, previous));
+                    }
+                    // enabled just now or by an earlier lookup, it might still get bound
+                    EnabledService enabled = enabledBySerial.get(device.getSerialNumber());
+                    if (enabled != null) {
+                        // the device might have reconnected since, restore through the current one
+                        enabledBySerial.put(device.getSerialNumber(), new EnabledService(device, enabled.previous));
+                        result = queryWithRetry(executor, port, patterns);
+                    }
+                }
+                return result;
+            } finally {
+                device.removeForward(port, SOCKET_NAME, IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+            }
+        } catch (TimeoutException | AdbCommandRejectedException | IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return the previous values of enabled_accessibility_services and accessibility_enabled, null if the
+     * service was enabled already or the settings couldn't be read (and therefore not be restored)
+     */
+    private static String[] enableService(ShellExecutor executor, IDevice device) {
+        String settings = executor.execute(device, "settings get secure enabled_accessibility_services; "
+                + "settings get secure accessibility_enabled", ShellExecutor.Kind.SHORT);
+        if (settings == null) {
+            return null;
+        }
+        String[] previous = (settings + "\n\n").split("\n", -1);
+        String enabled = previous[0].trim();
+        if (enabled.contains(SERVICE_ID)) {
+            return null;
+        }
+
+        String services = isUnset(enabled) ? SERVICE_ID : enabled + ":" + SERVICE_ID;
+        shell(executor, device, "settings put secure enabled_accessibility_services " + services
+                + "; settings put secure accessibility_enabled 1");
+        return new String[]{enabled, previous[1].trim()};
+    }
+
+    /**
+     * Puts back the settings of every device on which a lookup enabled the service
+     */
+    static void restoreAll() {
+        for (String serial : enabledBySerial.keySet()) {
+            EnabledService enabled = enabledBySerial.remove(serial);
+            if (enabled != null) {
+                restoreService(enabled.device, enabled.previous);
+            }
+        }
+    }
+
+    /**
+     * Puts back the settings changed by {@link #enableService(ShellExecutor, IDevice)}, even if the script ran out
+     * of time
+     */
+    private static void restoreService(IDevice device, String[] previous) {
+        shell(ShellExecutor.DEFAULT, device, restoreCommand("enabled_accessibility_services", previous[0]) + "; "
+                + restoreCommand("accessibility_enabled", previous[1]));
+    }
+
+    private static String restoreCommand(String setting, String value) {
+        return isUnset(value) ? "settings delete secure " + setting : "settings put secure " + setting + " " + value;
+    }
+
+    private static boolean isUnset(String value) {
+        return value.length() == 0 || "null".equals(value);
+    }
+
+    /**
+     * The service needs a moment to get bound after it was enabled. Until then adb closes the connection.
+     */
+    private static Map<String, Rectangle> queryWithRetry(ShellExecutor executor, int port, Collection<String> patterns) {
+        long deadline = System.currentTimeMillis() + executor.limit(CONNECT_TIMEOUT_MS);
+        while (true) {
+            Map<String, Rectangle> result = query(executor, port, patterns);
+            if (result != null || System.currentTimeMillis() > deadline) {
+                return result;
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    private static Map<String, Rectangle> query(ShellExecutor executor, int port, Collection<String> patterns) {
+        // a timeout of 0 would block forever
+        int connectTimeout = (int) executor.limit(CONNECT_TIMEOUT_MS);
+        int readTimeout = (int) executor.limit(READ_TIMEOUT_MS);
+        if (connectTimeout <= 0 || readTimeout <= 0) {
+            return null;
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(patterns.size());
+            for (String pattern : patterns) {
+                out.writeUTF(pattern);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int count = in.readInt();
+            Map<String, Rectangle> result = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String resId = in.readUTF();
+                int left = in.readInt();
+                int top = in.readInt();
+                int right = in.readInt();
+                int bottom = in.readInt();
+                result.put(resId, new Rectangle(left, top, right - left, bottom - top));
+            }
+            return result;
+        } catch (IOException e) {
+            // service not running or not answering in time
+            return null;
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String shell(ShellExecutor executor, IDevice device, String cmd) {
+        String output = executor.execute(device, cmd, ShellExecutor.Kind.SHORT);
+        return output != null ? output : "";
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ADC actions and input scripts from the command line, e.g. on CI device farms.
+ *
+ * All selected devices (all online devices by default) are controlled in parallel. Results are printed as one JSON
+ * object per line: one for every script step, one for every device and a summary at the end. With --lockstep the
+ * devices run the script step by step together and a line with the skew between the devices follows every step.
+ * The exit code is 0 if the action succeeded on all devices, 1 if it failed on any device and 2 on usage errors.
+ */
+public class AdcCommandLine {
+
+    private static final long BRIDGE_TIMEOUT_MS = 10000;
+
+    private static final String USAGE = "Usage: AdcCommandLine [options] <action> [argument]\n"
+            + "\n"
+            + "Actions:\n"
+            + "  script <file>              run an input script (\"-\" reads it from stdin)\n"
+            + "  replay <file>              replay a session recorded in the IDE\n"
+            + "  locale <language_COUNTRY>  switch the locale\n"
+            + "  layout-bounds on|off       show or hide layout bounds\n"
+            + "  clear-data                 clear the data of the apps\n"
+            + "  kill                       kill the processes of the apps\n"
+            + "  top-activity               print the top activity\n"
+            + "\n"
+            + "Options:\n"
+            + "  --adb <path>               adb executable (default: $ANDROID_HOME/platform-tools/adb)\n"
+            + "  --serial <serial>          device to use, can be repeated (default: all online devices)\n"
+            + "  --app <appId>              app id used by clear-data, kill and log steps, can be repeated\n"
+            + "  --timeout <seconds>        cancel scripts running longer (default: 120, 0 = never)\n"
+            + "  --retries <count>          retries of shell commands failing with adb errors (default: 2)\n"
+            + "  --no-idle-wait             use fixed delays instead of waiting for an idle UI\n"
+            + "  --keyboard                 send text through the ADC keyboard\n"
+            + "  --accessibility            find views through the ADC accessibility service\n"
+            + "  --lockstep                 start script steps on all devices together, report the skew\n"
+            + "  --fast                     replay as fast as possible instead of the recorded pace\n";
+
+    private final PrintStream out;
+    private final DeviceController.Options options = new DeviceController.Options();
+    private final Set<String> serials = new LinkedHashSet<>();
+    private final List<String> appIds = new ArrayList<>();
+    private String adb;
+    private String action;
+    private String argument;
+    private String script;
+    private Lockstep lockstep;
+    private boolean useLockstep;
+    private SessionLog.Session session;
+    private boolean fast;
+
+    private AdcCommandLine(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        AdcCommandLine commandLine = new AdcCommandLine(System.out);
+        String error = commandLine.parse(args);
+        if (error != null) {
+            System.err.println(error);
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        AndroidDebugBridge.init(false);
+        int exitCode;
+        try {
+            exitCode = commandLine.run();
+        } finally {
+            AndroidDebugBridge.terminate();
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * @return an error message or null if the arguments are fine
+     */
+    private String parse(String[] args) {
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--adb":
+                        adb = args[++i];
+                        break;
+                    case "--serial":
+                        serials.add(args[++i]);
+                        break;
+                    case "--app":
+                        appIds.add(args[++i]);
+                        break;
+                    case "--timeout":
+                        options.scriptTimeoutSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--retries":
+                        options.shellRetries = Integer.parseInt(args[++i]);
+                        break;
+                    case "--no-idle-wait":
+                        options.waitForIdle = false;
+                        break;
+                    case "--keyboard":
+                        options.useAdcKeyboard = true;
+                        break;
+                    case "--accessibility":
+                        options.useAccessibilityLookup = true;
+                        break;
+                    case "--lockstep":
+                        useLockstep = true;
+                        break;
+                    case "--fast":
+                        fast = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            return "Unknown option " + args[i];
+                        }
+                        positional.add(args[i]);
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return "Missing value of " + args[args.length - 1];
+        } catch (NumberFormatException e) {
+            return "Not a number: " + e.getMessage();
+        }
+
+        if (positional.isEmpty()) {
+            return "Missing action";
+        }
+        action = positional.get(0);
+        argument = positional.size() > 1 ? positional.get(1) : null;
+
+        switch (action) {
+            case "script":
+                if (argument == null) {
+                    return "Missing script file";
+                }
+                try {
+                    script = readScript(argument);
+                } catch (IOException e) {
+                    return "Can't read " + argument + ": " + e.getMessage();
+                }
+                break;
+            case "replay":
+                if (argument == null) {
+                    return "Missing session file";
+                }
+                try {
+                    session = SessionLog.read(new File(argument));
+                } catch (IOException e) {
+                    return "Can't read " + argument + ": " + e.getMessage();
+                }
+                break;
+            case "locale":
+                if (argument == null || !argument.matches("[a-zA-Z]+_[a-zA-Z]+")) {
+                    return "Locale has to look like en_US";
+                }
+                break;
+            case "layout-bounds":
+                if (!"on".equals(argument) && !"off".equals(argument)) {
+                    return "layout-bounds needs on or off";
+                }
+                break;
+            case "clear-data":
+            case "kill":
+                if (appIds.isEmpty()) {
+                    return action + " needs at least one --app";
+                }
+                break;
+            case "top-activity":
+                break;
+            default:
+                return "Unknown action " + action;
+        }
+
+        if (adb == null) {
+            adb = findAdb();
+        }
+        return null;
+    }
+
+    private int run() {
+        long start = System.currentTimeMillis();
+        AndroidDebugBridge bridge = AndroidDebugBridge.createBridge(adb, false);
+        long deadline = System.currentTimeMillis() + BRIDGE_TIMEOUT_MS;
+        while (bridge == null || !bridge.isConnected() || !bridge.hasInitialDeviceList()) {
+            if (System.currentTimeMillis() > deadline) {
+                System.err.println("Unable to connect to adb (" + adb + ")");
+                return 1;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return 1;
+            }
+        }
+
+        List<IDevice> devices = new ArrayList<>();
+        Set<String> missing = new LinkedHashSet<>(serials);
+        for (IDevice device : bridge.getDevices()) {
+            if (device.isOnline() && (serials.isEmpty() || serials.contains(device.getSerialNumber()))) {
+                devices.add(device);
+                missing.remove(device.getSerialNumber());
+            }
+        }
+
+        int failed = 0;
+        for (String serial : missing) {
+            print("{\"serial\":" + json(serial) + ",\"action\":" + json(action) + ",\"success\":false,\"error\":\"not connected\"}");
+            failed++;
+        }
+
+        if (useLockstep && "script".equals(action)) {
+            lockstep = new Lockstep(devices.size(), report -> print("{\"step\":" + json(report.step) + ",\"index\":"
+                    + report.index + ",\"devices\":" + report.durationsMs.size() + ",\"skewMs\":" + report.getSkewMs()
+                    + ",\"slowest\":" + json(report.getSlowest()) + ",\"failed\":" + report.failed.size() + "}"));
+        }
+
+        if (!devices.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(devices.size());
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (IDevice device : devices) {
+                results.add(executor.submit(() -> runOnDevice(device)));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    if (!result.get()) {
+                        failed++;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failed++;
+                }
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+            AccessibilityViewLookup.restoreAll();
+        }
+
+        print("{\"devices\":" + (devices.size() + missing.size()) + ",\"failed\":" + failed
+                + ",\"durationMs\":" + (System.currentTimeMillis() - start) + "}");
+        return failed == 0 && !(devices.isEmpty() && missing.isEmpty()) ? 0 : 1;
+    }
+
+    private boolean runOnDevice(IDevice device) {
+        String serial = json(device.getSerialNumber());
+        DeviceController controller = new DeviceController(device, options);
+        long start = System.currentTimeMillis();
+        String error = null;
+        String result = null;
+        boolean success;
+        try {
+            if (needsEnabler() && !controller.isEnablerInstalled()) {
+                controller.installEnabler();
+            }
+
+            switch (action) {
+                case "script":
+                    DeviceController.StepListener listener = (step, durationMs, stepSuccess) -> print("{\"serial\":"
+                            + serial + ",\"action\":\"script\",\"step\":" + json(step.trim()) + ",\"durationMs\":" + durationMs
+                            + ",\"success\":" + stepSuccess + "}");
+                    if (lockstep != null) {
+                        listener = lockstep.wrap(device.getSerialNumber(), listener);
+                    }
+                    success = controller.runScript(script, appIds, listener);
+                    if (!success) {
+                        error = "deadline exceeded";
+                    }
+                    break;
+                case "replay":
+                    success = new SessionReplayer(session).replay(controller, !fast, appIds, (step, durationMs, stepSuccess) -> print("{\"serial\":"
+                            + serial + ",\"action\":\"replay\",\"step\":" + json(step) + ",\"durationMs\":" + durationMs
+                            + ",\"success\":" + stepSuccess + "}"));
+                    break;
+                case "locale":
+                    String[] parts = argument.split("_");
+                    success = controller.setLocale(parts[0], parts[1]);
+                    break;
+                case "layout-bounds":
+                    success = controller.setShowLayoutBounds("on".equals(argument));
+                    break;
+                case "clear-data":
+                    success = controller.clearData(appIds);
+                    break;
+                case "kill":
+                    success = controller.killProcesses(appIds);
+                    break;
+                default:
+                    result = controller.getTopActivity();
+                    success = result != null;
+                    break;
+            }
+        } catch (IOException e) {
+            success = false;
+            error = e.getMessage();
+        } finally {
+            if (lockstep != null) {
+                lockstep.leave();
+            }
+        }
+
+        print("{\"serial\":" + serial + ",\"action\":" + json(action)
+                + (result != null ? ",\"result\":" + json(result.trim()) : "")
+                + ",\"durationMs\":" + (System.currentTimeMillis() - start) + ",\"success\":" + success
+                + (error != null ? ",\"error\":" + json(error) : "") + "}");
+        return success;
+    }
+
+    private boolean needsEnabler() {
+        return "locale".equals(action) || "replay".equals(action) || "layout-bounds".equals(action) || options.useAdcKeyboard || options.useAccessibilityLookup;
+    }
+
+    private synchronized void print(String line) {
+        out.println(line);
+        out.flush();
+    }
+
+    private static String readScript(String file) throws IOException {
+        try (InputStream in = "-".equals(file) ? System.in : new FileInputStream(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, len);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String findAdb() {
+        String executable = System.getProperty("os.name").toLowerCase().contains("windows") ? "adb.exe" : "adb";
+        for (String variable : new String[]{"ANDROID_HOME", "ANDROID_SDK_ROOT"}) {
+            String sdk = System.getenv(variable);
+            if (sdk != null) {
+                File candidate = new File(new File(sdk, "platform-tools"), executable);
+                if (candidate.canExecute()) {
+                    return candidate.getPath();
+                }
+            }
+        }
+
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                File candidate = new File(dir, executable);
+                if (candidate.canExecute()) {
+                    return candidate.getPath();
+                }
+            }
+        }
+        return executable;
+    }
+
+    private static String json(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirrors the databases, shared preferences and files of a debuggable app into a local folder.
+ *
+ * The device side is listed with size and mtime and compared with a manifest kept in the mirror folder, only
+ * files which changed are transferred - batched into one tar stream created via run-as. Since mtime only has a
+ * resolution of one second, files which were modified in the same second as the last sync are additionally
+ * compared by their MD5 hash.
+ */
+class AppDataMirror {
+
+    static final String[] MIRRORED_DIRS = {"databases", "shared_prefs", "files"};
+
+    private static final String MANIFEST = ".adc-mirror";
+
+    /**
+     * Result of a sync
+     */
+    static class Result {
+        int transferred;
+        int deleted;
+        int unchanged;
+    }
+
+    private final AppSandbox sandbox;
+    private final File mirrorDir;
+
+    AppDataMirror(IDevice device, String appId, File mirrorDir) {
+        this.sandbox = new AppSandbox(device, appId);
+        this.mirrorDir = mirrorDir;
+    }
+
+    Result sync() throws IOException {
+        mirrorDir.mkdirs();
+        AppSandbox.Listing previous = loadManifest(new File(mirrorDir, MANIFEST));
+        AppSandbox.Listing current = sandbox.list(MIRRORED_DIRS);
+
+        List<String> changed = new ArrayList<>();
+        List<String> racy = new ArrayList<>();
+        Result result = new Result();
+        for (Map.Entry<String, AppSandbox.FileState> entry : current.files.entrySet()) {
+            String path = entry.getKey();
+            AppSandbox.FileState now = entry.getValue();
+            AppSandbox.FileState before = previous.files.get(path);
+            if (before == null || before.size != now.size || before.mtime != now.mtime || !new File(mirrorDir, path).exists()) {
+                changed.add(path);
+            } else if (now.mtime >= previous.deviceTime) {
+                racy.add(path);
+            } else {
+                result.unchanged++;
+            }
+        }
+
+        if (!racy.isEmpty()) {
+            Map<String, String> deviceHashes = sandbox.md5(racy);
+            for (String path : racy) {
+                if (!md5(new File(mirrorDir, path)).equals(deviceHashes.get(path))) {
+                    changed.add(path);
+                } else {
+                    result.unchanged++;
+                }
+            }
+        }
+
+        sandbox.pull(changed, (name, mode, size, mtime, content) -> Tar.extractTo(mirrorDir, name, mtime, content));
+        result.transferred = changed.size();
+
+        for (String path : previous.files.keySet()) {
+            if (!current.files.containsKey(path)) {
+                new File(mirrorDir, path).delete();
+                result.deleted++;
+            }
+        }
+
+        saveManifest(current, new File(mirrorDir, MANIFEST));
+        return result;
+    }
+
+    static String md5(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[16 * 1024];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, len);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The manifest contains the state of the device side files at the time of the last sync
+     */
+    private static AppSandbox.Listing loadManifest(File file) throws IOException {
+        AppSandbox.Listing manifest = new AppSandbox.Listing();
+        if (!file.exists()) {
+            return manifest;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            manifest.deviceTime = Long.parseLong(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                manifest.files.put(parts[2], new AppSandbox.FileState(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+            }
+        } catch (NumberFormatException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+            // broken manifest - do a full sync
+            return new AppSandbox.Listing();
+        }
+        return manifest;
+    }
+
+    private static void saveManifest(AppSandbox.Listing manifest, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(manifest.deviceTime);
+            for (Map.Entry<String, AppSandbox.FileState> entry : manifest.files.entrySet()) {
+                writer.println(entry.getValue().size + " " + entry.getValue().mtime + " " + entry.getKey());
+            }
+        }
+    }
+}
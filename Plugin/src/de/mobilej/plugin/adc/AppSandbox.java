@@ -0,0 +1,294 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to the data directory of a debuggable app via run-as.
+ *
+ * Files are always transferred batched into tar streams. If the shell channel is binary safe the tar is streamed
+ * (compressed) through the shell, otherwise it goes through a temporary file on the device and the sync service.
+ */
+class AppSandbox {
+
+    /**
+     * Keep each command well below the 4k limit of older adb versions
+     */
+    private static final int MAX_COMMAND_LENGTH = 3000;
+
+    private static final String DEVICE_TMP_TAR = "/data/local/tmp/adc_sandbox.tar";
+    private static final String EXTRACTED_MARKER = "ADC_EXTRACTED";
+
+    static class FileState {
+        final long size;
+        final long mtime;
+
+        FileState(long size, long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * Files of the sandbox together with the time on the device when they were listed
+     */
+    static class Listing {
+        long deviceTime = Long.MAX_VALUE;
+        final Map<String, FileState> files = new HashMap<>();
+    }
+
+    private final IDevice device;
+    private final String appId;
+
+    AppSandbox(IDevice device, String appId) {
+        this.device = device;
+        this.appId = appId;
+    }
+
+    String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Lists all regular files below the given directories (relative to the data directory of the app).
+     */
+    Listing list(String... dirs) throws IOException {
+        // errors of run-as itself have to show up, missing directories are fine
+        StringBuilder cmd = new StringBuilder("date +%s; run-as ").append(appId).append(" sh -c 'find");
+        for (String dir : dirs) {
+            cmd.append(' ').append(dir);
+        }
+        cmd.append(" -type f -exec stat -c \"%s %Y %n\" {} + 2>/dev/null'");
+        String output = CompressedShell.execute(device, cmd.toString(), AppSandbox::readAll);
+        if (output == null) {
+            throw new IOException("Unable to list files of " + appId);
+        }
+
+        Listing listing = new Listing();
+        BufferedReader reader = new BufferedReader(new StringReader(output));
+        String line = reader.readLine();
+        try {
+            listing.deviceTime = Long.parseLong(line.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("Unexpected output: " + line);
+        }
+        while ((line = reader.readLine()) != null) {
+            checkRunAsError(line);
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                try {
+                    String path = parts[2].startsWith("./") ? parts[2].substring(2) : parts[2];
+                    listing.files.put(path, new FileState(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+                } catch (NumberFormatException nfe) {
+                    // not a line of stat
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Returns the MD5 hashes of the given files.
+     */
+    Map<String, String> md5(List<String> paths) {
+        Map<String, String> hashes = new HashMap<>();
+        String prefix = "run-as " + appId + " md5sum ";
+        for (List<String> batch : batches(paths, prefix)) {
+            String output = CompressedShell.execute(device, prefix + quoteAll(batch), AppSandbox::readAll);
+            if (output == null) {
+                continue;
+            }
+            for (String line : output.split("\n")) {
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts.length == 2) {
+                    hashes.put(parts[1], parts[0]);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Transfers the given files to the host, every file is handed to the handler.
+     */
+    void pull(List<String> paths, Tar.EntryHandler handler) throws IOException {
+        String prefix = "run-as " + appId + " tar -cf - ";
+        for (List<String> batch : batches(paths, prefix)) {
+            pullBatch(prefix + quoteAll(batch), handler);
+        }
+    }
+
+    private void pullBatch(String tarCmd, Tar.EntryHandler handler) throws IOException {
+        if (CompressedShell.getGzip(device) != null) {
+            Boolean done = CompressedShell.executeBinary(device, tarCmd, in -> {
+                Tar.read(in, handler);
+                return Boolean.TRUE;
+            });
+            if (done == null) {
+                throw new IOException("Transfer of " + appId + " data failed");
+            }
+            return;
+        }
+
+        File localTar = File.createTempFile("adc_sandbox", ".tar");
+        try {
+            run(tarCmd + " > " + DEVICE_TMP_TAR, ShellExecutor.Kind.TRANSFER, "Transfer of " + appId + " data failed");
+            device.pullFile(DEVICE_TMP_TAR, localTar.getAbsolutePath());
+            try (InputStream in = new FileInputStream(localTar)) {
+                Tar.read(in, handler);
+            }
+        } catch (TimeoutException | AdbCommandRejectedException | SyncException e) {
+            throw new IOException("Transfer of " + appId + " data failed", e);
+        } finally {
+            ShellExecutor.DEFAULT.execute(device, "rm -f " + DEVICE_TMP_TAR, ShellExecutor.Kind.SHORT);
+            localTar.delete();
+        }
+    }
+
+    /**
+     * Copies the given local tar to a temporary file on the device, {@link #extractUpload()} extracts it.
+     */
+    void upload(File localTar) throws IOException {
+        try {
+            device.pushFile(localTar.getAbsolutePath(), DEVICE_TMP_TAR);
+        } catch (TimeoutException | AdbCommandRejectedException | SyncException e) {
+            throw new IOException("Transfer of " + appId + " data failed", e);
+        }
+    }
+
+    /**
+     * Extracts the tar copied by {@link #upload(File)} into the data directory of the app and deletes it. The tar
+     * is read by the shell user and piped into run-as since the app itself might not be allowed to read
+     * /data/local/tmp.
+     */
+    void extractUpload() throws IOException {
+        String output = run("[ -f " + DEVICE_TMP_TAR + " ] && cat " + DEVICE_TMP_TAR + " | run-as " + appId + " tar -xf - && echo "
+                + EXTRACTED_MARKER + "; rm -f " + DEVICE_TMP_TAR, ShellExecutor.Kind.TRANSFER, "Transfer of " + appId + " data failed");
+        if (!output.contains(EXTRACTED_MARKER)) {
+            throw new IOException("Extracting " + appId + " data failed: " + output.trim());
+        }
+    }
+
+    /**
+     * Deletes the tar copied by {@link #upload(File)} without extracting it.
+     */
+    void discardUpload() {
+        ShellExecutor.DEFAULT.execute(device, "rm -f " + DEVICE_TMP_TAR, ShellExecutor.Kind.SHORT);
+    }
+
+    /**
+     * Sets the permissions of the given files.
+     */
+    void chmod(int mode, List<String> paths) throws IOException {
+        String prefix = "run-as " + appId + " chmod " + Integer.toOctalString(mode) + " ";
+        for (List<String> batch : batches(paths, prefix)) {
+            run(prefix + quoteAll(batch), ShellExecutor.Kind.SHORT, "Setting permissions for " + appId + " failed");
+        }
+    }
+
+    /**
+     * Runs the given script as the app user inside of its data directory.
+     */
+    String runScript(String script) throws IOException {
+        return run("run-as " + appId + " sh -c " + quote(script), ShellExecutor.Kind.TRANSFER, "Running script for " + appId + " failed");
+    }
+
+    /**
+     * Runs the command, tar and friends don't print anything while they work so this has to allow long silent
+     * periods.
+     *
+     * @return the output of the command
+     */
+    private String run(String cmd, ShellExecutor.Kind kind, String failureMessage) throws IOException {
+        StringShellOutputReceiver rcv = new StringShellOutputReceiver();
+        try {
+            ShellExecutor.DEFAULT.execute(device, cmd, kind, rcv);
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException e) {
+            throw new IOException(failureMessage, e);
+        }
+        String result = rcv.getResult();
+        for (String line : result.split("\n")) {
+            checkRunAsError(line);
+        }
+        return result;
+    }
+
+    private static void checkRunAsError(String line) throws IOException {
+        if (line.startsWith("run-as:")) {
+            throw new IOException(line.trim());
+        }
+    }
+
+    static List<List<String>> batches(List<String> paths, String commandPrefix) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int length = commandPrefix.length();
+        for (String path : paths) {
+            int quotedLength = quote(path).length() + 1;
+            if (!batch.isEmpty() && length + quotedLength > MAX_COMMAND_LENGTH) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                length = commandPrefix.length();
+            }
+            batch.add(path);
+            length += quotedLength;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    static String quoteAll(List<String> paths) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(quote(path));
+        }
+        return sb.toString();
+    }
+
+    static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    static String readAll(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[8192];
+        int len;
+        while ((len = reader.read(buffer)) > 0) {
+            sb.append(buffer, 0, len);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs shell commands with large outputs and hands the output to a consumer while it is still being received.
+ *
+ * If the device has a working gzip (plain, toybox or busybox) and the shell transfers binary data unmodified
+ * the output is compressed on the device and decompressed on the host. Otherwise the plain output is streamed.
+ */
+class CompressedShell {
+
+    interface StreamConsumer<T> {
+        T consume(Reader reader) throws IOException;
+    }
+
+    interface BinaryStreamConsumer<T> {
+        T consume(InputStream in) throws IOException;
+    }
+
+    private static final String[] GZIP_CANDIDATES = {"gzip", "toybox gzip", "busybox gzip"};
+    private static final String PROBE_TEXT = "adc";
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private static final String NOT_SUPPORTED = "";
+    private static final Map<String, String> gzipBySerial = new ConcurrentHashMap<>();
+
+    private static final ExecutorService consumers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ADC shell stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CompressedShell() {
+    }
+
+    /**
+     * Executes the command and feeds its output to the consumer.
+     *
+     * @return the result of the consumer or null if the command or the consumer failed
+     */
+    static <T> T execute(IDevice device, String cmd, StreamConsumer<T> consumer) {
+        return execute(ShellExecutor.DEFAULT, device, cmd, consumer);
+    }
+
+    /**
+     * Like {@link #execute(IDevice, String, StreamConsumer)} but runs the command with the deadline and retries of
+     * the given executor.
+     */
+    static <T> T execute(ShellExecutor executor, IDevice device, String cmd, StreamConsumer<T> consumer) {
+        return executeBinary(executor, ShellExecutor.Kind.DUMP, device, cmd, in -> consumer.consume(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Like {@link #execute(IDevice, String, StreamConsumer)} but hands the raw bytes to the consumer. Should only
+     * be used for binary output if {@link #getGzip(IDevice)} indicates a binary safe channel.
+     */
+    static <T> T executeBinary(IDevice device, String cmd, BinaryStreamConsumer<T> consumer) {
+        return executeBinary(ShellExecutor.DEFAULT, ShellExecutor.Kind.TRANSFER, device, cmd, consumer);
+    }
+
+    static <T> T executeBinary(ShellExecutor executor, ShellExecutor.Kind kind, IDevice device, String cmd, BinaryStreamConsumer<T> consumer) {
+        String gzip = getGzip(device);
+        boolean compressed = gzip != null;
+        if (compressed) {
+            cmd = "(" + cmd + ") | " + gzip + " -c";
+        }
+
+        PipeReceiver receiver;
+        try {
+            receiver = new PipeReceiver();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        Future<T> result = consumers.submit(() -> {
+            try (InputStream in = compressed ? new GZIPInputStream(receiver.in, PIPE_SIZE) : receiver.in) {
+                return consumer.consume(in);
+            } finally {
+                receiver.consumerDone = true;
+            }
+        });
+
+        try {
+            executor.execute(device, cmd, kind, receiver);
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            receiver.close();
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the gzip command to use on the given device or null if compressed transfer isn't possible. A probe
+     * which failed (e.g. adb timed out) isn't remembered, the next call probes again.
+     */
+    static String getGzip(IDevice device) {
+        String gzip = gzipBySerial.computeIfAbsent(device.getSerialNumber(), serial -> detectGzip(device));
+        return gzip == null || NOT_SUPPORTED.equals(gzip) ? null : gzip;
+    }
+
+    /**
+     * Drops the detected gzip of a device, e.g. when it got disconnected
+     */
+    static void forget(IDevice device) {
+        gzipBySerial.remove(device.getSerialNumber());
+    }
+
+    /**
+     * Older devices run shell commands in a pty which turns every LF into CRLF. So the probe first sends a plain
+     * LF which has to arrive unmodified, followed by a compressed text which has to decompress correctly.
+     *
+     * @return the gzip command, {@link #NOT_SUPPORTED} if the device has none or null if the probe failed
+     */
+    private static String detectGzip(IDevice device) {
+        for (String candidate : GZIP_CANDIDATES) {
+            ByteArrayReceiver probe = new ByteArrayReceiver();
+            try {
+                ShellExecutor.DEFAULT.execute(device, "printf '\\n'; printf '" + PROBE_TEXT + "' | " + candidate + " -c 2>/dev/null",
+                        ShellExecutor.Kind.SHORT, probe);
+            } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+
+            byte[] bytes = probe.bytes.toByteArray();
+            if (bytes.length < 2 || bytes[0] != '\n') {
+                // the channel isn't binary safe - no candidate will work
+                return NOT_SUPPORTED;
+            }
+
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1))) {
+                ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    decompressed.write(buffer, 0, len);
+                }
+                if (PROBE_TEXT.equals(new String(decompressed.toByteArray(), StandardCharsets.UTF_8))) {
+                    return candidate;
+                }
+            } catch (IOException e) {
+                // not a gzip stream - try the next candidate
+            }
+        }
+        return NOT_SUPPORTED;
+    }
+
+    /**
+     * Writes the received output into a pipe. Once the consumer finished, everything else is dropped and the
+     * command gets cancelled.
+     */
+    private static class PipeReceiver implements IShellOutputReceiver {
+        final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        private final PipedOutputStream out = new PipedOutputStream(in);
+        volatile boolean consumerDone = false;
+
+        PipeReceiver() throws IOException {
+        }
+
+        @Override
+        public void addOutput(byte[] bytes, int offset, int length) {
+            if (consumerDone) {
+                return;
+            }
+            try {
+                out.write(bytes, offset, length);
+            } catch (IOException e) {
+                consumerDone = true;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return consumerDone;
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private static class ByteArrayReceiver implements IShellOutputReceiver {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            bytes.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -17,10 +17,12 @@ import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.options.Configurable;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.project.Project;
+import com.intellij.ui.DocumentAdapter;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
@@ -35,6 +37,13 @@ public class Configuration implements Configurable {
 
     private boolean modified = false;
     private boolean clearDevicesClicked = false;
+    private JTextField mirrorDir;
+    private JCheckBox waitForIdle;
+    private JCheckBox useAdcKeyboard;
+    private JCheckBox useAccessibilityLookup;
+    private JSpinner shellRetries;
+    private JSpinner scriptTimeoutSeconds;
+    private JCheckBox prewarmDevices;
 
     public Configuration(Project project){
         this.storage = ServiceManager.getService(project, Storage.class);
@@ -61,6 +70,42 @@ public class Configuration implements Configurable {
             clearDevicesClicked = true;
         });
 
+        panel.add(new JLabel("Folder for mirrored app data"));
+        mirrorDir = new JTextField(storage.getMirrorDir());
+        panel.add(mirrorDir);
+        mirrorDir.getDocument().addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(DocumentEvent documentEvent) {
+                modified = true;
+            }
+        });
+
+        waitForIdle = new JCheckBox("Wait for idle UI between input steps (instead of fixed delays)", storage.isWaitForIdle());
+        panel.add(waitForIdle);
+        waitForIdle.addActionListener(actionEvent -> modified = true);
+
+        useAdcKeyboard = new JCheckBox("Send text through the ADC keyboard (commits whole blocks of text at once)", storage.isUseAdcKeyboard());
+        panel.add(useAdcKeyboard);
+        useAdcKeyboard.addActionListener(actionEvent -> modified = true);
+
+        useAccessibilityLookup = new JCheckBox("Find views by id through the ADC accessibility service (instead of dumping the whole UI)", storage.isUseAccessibilityLookup());
+        panel.add(useAccessibilityLookup);
+        useAccessibilityLookup.addActionListener(actionEvent -> modified = true);
+
+        panel.add(new JLabel("Retries of shell commands failing with adb errors"));
+        shellRetries = new JSpinner(new SpinnerNumberModel(storage.getShellRetries(), 0, 10, 1));
+        panel.add(shellRetries);
+        shellRetries.addChangeListener(changeEvent -> modified = true);
+
+        panel.add(new JLabel("Cancel input scripts running longer than (seconds, 0 = never)"));
+        scriptTimeoutSeconds = new JSpinner(new SpinnerNumberModel(storage.getScriptTimeoutSeconds(), 0, 3600, 10));
+        panel.add(scriptTimeoutSeconds);
+        scriptTimeoutSeconds.addChangeListener(changeEvent -> modified = true);
+
+        prewarmDevices = new JCheckBox("Prepare newly connected devices in the background", storage.isPrewarmDevices());
+        panel.add(prewarmDevices);
+        prewarmDevices.addActionListener(actionEvent -> modified = true);
+
         return panel;
     }
 
@@ -74,5 +119,12 @@ public class Configuration implements Configurable {
         if(clearDevicesClicked) {
             storage.setInstalledOnDevices("");
         }
+        storage.setMirrorDir(mirrorDir.getText().trim());
+        storage.setWaitForIdle(waitForIdle.isSelected());
+        storage.setUseAdcKeyboard(useAdcKeyboard.isSelected());
+        storage.setUseAccessibilityLookup(useAccessibilityLookup.isSelected());
+        storage.setShellRetries((Integer) shellRetries.getValue());
+        storage.setScriptTimeoutSeconds((Integer) scriptTimeoutSeconds.getValue());
+        storage.setPrewarmDevices(prewarmDevices.isSelected());
     }
 }
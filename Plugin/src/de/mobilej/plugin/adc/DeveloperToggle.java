@@ -0,0 +1,183 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A developer option which is switched by system properties or global settings, read from toggles.txt.
+ *
+ * Profiles switch several toggles at once.
+ */
+class DeveloperToggle {
+
+    enum Type {
+        PROPERTY, GLOBAL_SETTING
+    }
+
+    static class Profile {
+        final String labelKey;
+        final Map<DeveloperToggle, Boolean> states;
+
+        Profile(String labelKey, Map<DeveloperToggle, Boolean> states) {
+            this.labelKey = labelKey;
+            this.states = states;
+        }
+    }
+
+    static final List<DeveloperToggle> ALL;
+    static final List<Profile> PROFILES;
+
+    static {
+        List<DeveloperToggle> toggles = new ArrayList<>();
+        List<Profile> profiles = new ArrayList<>();
+        try (InputStream is = DeveloperToggle.class.getResourceAsStream("/de/mobilej/plugin/adc/toggles.txt")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|", -1);
+                if ("toggle".equals(parts[0]) && parts.length == 7) {
+                    toggles.add(new DeveloperToggle(parts[1], parts[2], "global".equals(parts[3]) ? Type.GLOBAL_SETTING : Type.PROPERTY,
+                            parts[4], parts[5], parts[6].split(",")));
+                } else if ("profile".equals(parts[0]) && parts.length == 3) {
+                    Map<DeveloperToggle, Boolean> states = new LinkedHashMap<>();
+                    for (String state : parts[2].split(",")) {
+                        String[] idAndState = state.split("=");
+                        for (DeveloperToggle toggle : toggles) {
+                            if (toggle.id.equals(idAndState[0])) {
+                                states.put(toggle, "on".equals(idAndState[1]));
+                            }
+                        }
+                    }
+                    profiles.add(new Profile(parts[1], states));
+                }
+            }
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace();
+        }
+        ALL = Collections.unmodifiableList(toggles);
+        PROFILES = Collections.unmodifiableList(profiles);
+    }
+
+    final String id;
+    final String labelKey;
+    final Type type;
+    final String onValue;
+    final String offValue;
+    final String[] names;
+
+    private DeveloperToggle(String id, String labelKey, Type type, String onValue, String offValue, String[] names) {
+        this.id = id;
+        this.labelKey = labelKey;
+        this.type = type;
+        this.onValue = onValue;
+        this.offValue = offValue;
+        this.names = names;
+    }
+
+    static DeveloperToggle get(String id) {
+        for (DeveloperToggle toggle : ALL) {
+            if (toggle.id.equals(id)) {
+                return toggle;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the state from the cached properties of the device
+     */
+    boolean isOn(IDevice device) {
+        return isOnValue(type == Type.PROPERTY ? DeviceProperties.get(device, names[0]) : DeviceProperties.getGlobalSetting(device, names[0]));
+    }
+
+    private boolean isOnValue(String value) {
+        if (value == null) {
+            return false;
+        }
+        if (value.equals(onValue)) {
+            return true;
+        }
+        try {
+            // animation scales are floats
+            return Float.parseFloat(value) == Float.parseFloat(onValue);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the shell commands to switch the toggle, separated by ";"
+     */
+    String getCommand(boolean on) {
+        String value = on ? onValue : offValue;
+        if (value.length() == 0) {
+            value = "\"\"";
+        }
+        StringBuilder cmd = new StringBuilder();
+        for (String name : names) {
+            if (cmd.length() > 0) {
+                cmd.append("; ");
+            }
+            cmd.append(type == Type.PROPERTY ? "setprop " : "settings put global ").append(name).append(' ').append(value);
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * @return the shell commands printing the current values, one line per name, separated by ";"
+     */
+    String getReadCommand() {
+        StringBuilder cmd = new StringBuilder();
+        for (String name : names) {
+            if (cmd.length() > 0) {
+                cmd.append("; ");
+            }
+            cmd.append(type == Type.PROPERTY ? "getprop " : "settings get global ").append(name);
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Updates the cached properties with the output of {@link #getReadCommand()}, one line is taken per name.
+     *
+     * @return true if the device reports the toggle in the given state
+     */
+    boolean updateCache(IDevice device, Iterator<String> lines, boolean on) {
+        boolean matches = true;
+        for (String name : names) {
+            String value = lines.hasNext() ? lines.next().trim() : "";
+            if (type == Type.PROPERTY) {
+                DeviceProperties.put(device, name, value);
+            } else {
+                // settings prints "null" for settings which aren't set
+                DeviceProperties.putGlobalSetting(device, name, "null".equals(value) ? null : value);
+            }
+            matches &= isOnValue(value) == on;
+        }
+        return matches;
+    }
+}
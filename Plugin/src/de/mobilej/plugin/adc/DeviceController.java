@@ -0,0 +1,668 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.InstallException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.util.XmlPullUtil;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Controls a single device: the actions of the tool window and input scripts.
+ *
+ * Only depends on ddmlib, so it is used by the tool window as well as by {@link AdcCommandLine}.
+ */
+class DeviceController {
+
+    /**
+     * versionCode of the bundled enabler.apk - devices which only got an older version get it installed again
+     */
+    static final int ENABLER_VERSION = 3;
+    static final String ENABLER_PACKAGE = "mobilej.de.systemproppoker";
+
+    /**
+     * Dumps into a file instead of /dev/tty so the output can be piped through compression
+     */
+    private static final String TOGGLES_MARKER = "ADC_TOGGLES";
+    private static final String VIEW_DUMP_COMMAND = "uiautomator dump /data/local/tmp/adc_window_dump.xml >/dev/null && cat /data/local/tmp/adc_window_dump.xml";
+
+    static class Options {
+        boolean waitForIdle = true;
+        boolean useAdcKeyboard = false;
+        boolean useAccessibilityLookup = false;
+        int shellRetries = ShellExecutor.DEFAULT_RETRIES;
+        int scriptTimeoutSeconds = 120;
+    }
+
+    interface StepListener {
+        /**
+         * Called before every step of an input script, may block to hold the script back
+         */
+        default void beforeStep(String step) {
+        }
+
+        /**
+         * Called after every step of an input script
+         */
+        void stepFinished(String step, long durationMs, boolean success);
+    }
+
+    private final IDevice device;
+    private final Options options;
+    private volatile long scriptDeadline = Long.MAX_VALUE;
+    private volatile SessionRecorder recorder;
+
+    DeviceController(IDevice device, Options options) {
+        this.device = device;
+        this.options = options;
+    }
+
+    IDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * All following actions and script steps are recorded, null stops recording
+     */
+    void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    private void record(SessionLog.Type type, String... fields) {
+        SessionRecorder current = recorder;
+        if (current != null) {
+            current.record(type, fields);
+        }
+    }
+
+    /**
+     * Commands run during an input script share the deadline of the script
+     */
+    ShellExecutor getShellExecutor() {
+        return new ShellExecutor(options.shellRetries, scriptDeadline);
+    }
+
+    /**
+     * @return the output of the command or null if it failed
+     */
+    String shell(String cmd, ShellExecutor.Kind kind) {
+        return getShellExecutor().execute(device, cmd, kind);
+    }
+
+    /**
+     * Switches all given toggles with one shell command, running apps are poked once to pick up the changed
+     * properties. The same command reads the values back, a device might refuse some (e.g. SELinux denying
+     * persist.* properties), so the cache is updated from what the device reports.
+     *
+     * @return true if the device reports every toggle in the requested state
+     */
+    boolean applyToggles(Map<DeveloperToggle, Boolean> states) {
+        StringBuilder cmd = new StringBuilder();
+        StringBuilder readCmd = new StringBuilder();
+        boolean poke = false;
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<DeveloperToggle, Boolean> entry : states.entrySet()) {
+            fields.add(entry.getKey().id);
+            fields.add(entry.getValue() ? "1" : "0");
+            cmd.append(entry.getKey().getCommand(entry.getValue())).append("; ");
+            readCmd.append("; ").append(entry.getKey().getReadCommand());
+            poke |= entry.getKey().type == DeveloperToggle.Type.PROPERTY;
+        }
+        if (cmd.length() == 0) {
+            return true;
+        }
+        if (poke) {
+            cmd.append("am start -a POKESYSPROPS >/dev/null; ");
+        }
+        cmd.append("echo ").append(TOGGLES_MARKER).append(readCmd);
+        record(SessionLog.Type.TOGGLES, fields.toArray(new String[fields.size()]));
+
+        String output = shell(cmd.toString(), ShellExecutor.Kind.SHORT);
+        int marker = output != null ? output.indexOf(TOGGLES_MARKER) : -1;
+        if (marker < 0) {
+            DeviceProperties.invalidate(device);
+            return false;
+        }
+
+        // errors of the switching commands are printed before the marker, every read prints exactly one line
+        String values = output.substring(marker + TOGGLES_MARKER.length()).replace("\r", "");
+        Iterator<String> lines = Arrays.asList(values.substring(values.startsWith("\n") ? 1 : 0).split("\n", -1)).iterator();
+        boolean success = true;
+        for (Map.Entry<DeveloperToggle, Boolean> entry : states.entrySet()) {
+            success &= entry.getKey().updateCache(device, lines, entry.getValue());
+        }
+        return success;
+    }
+
+    boolean setShowLayoutBounds(boolean show) {
+        return applyToggles(Collections.singletonMap(DeveloperToggle.get("layout_bounds"), show));
+    }
+
+    boolean setLocale(String language, String country) {
+        record(SessionLog.Type.LOCALE, language, country);
+        String res = shell("am start -a SETMYLOCALE --es language " + language + " --es country " + country, ShellExecutor.Kind.SHORT);
+        DeviceProperties.invalidate(device);
+        return res != null;
+    }
+
+    boolean clearData(List<String> appIds) {
+        record(SessionLog.Type.CLEAR_DATA, appIds.toArray(new String[appIds.size()]));
+        boolean success = true;
+        for (String appId : appIds) {
+            success &= shell("pm clear " + appId, ShellExecutor.Kind.SHORT) != null;
+        }
+        return success;
+    }
+
+    boolean killProcesses(List<String> appIds) {
+        record(SessionLog.Type.KILL, appIds.toArray(new String[appIds.size()]));
+        boolean success = true;
+        for (String appId : appIds) {
+            String res = shell("run-as "+appId+" ps -A", ShellExecutor.Kind.SHORT);
+            if(res!=null) {
+                LineNumberReader lnr = new LineNumberReader(new StringReader(res));
+                try {
+                    String pid = null;
+                    String line = lnr.readLine();
+                    while(line!=null){
+                        line = lnr.readLine();
+                        if(line!=null){
+                            if(line.contains(appId)){
+                                StringTokenizer toker = new StringTokenizer(line, " \t");
+                                if(toker.hasMoreTokens()){
+                                    toker.nextToken();
+                                    if(toker.hasMoreTokens()) {
+                                        pid = toker.nextToken();
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                    }
+
+                    if(pid!=null){
+                        success &= shell("run-as "+appId+" kill "+pid, ShellExecutor.Kind.SHORT) != null;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            } else {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @return the top activity like "my.app/.MainActivity" followed by further details or null
+     */
+    String getTopActivity() {
+        return CompressedShell.execute(getShellExecutor(), device, "dumpsys activity top", DeviceController::parseTopActivity);
+    }
+
+    /**
+     * Does the work which makes the first action on a device slower than the following ones: fetches the system
+     * properties, detects the shell capabilities, looks up the processes of the apps and starts the view lookup
+     * once (the first start of uiautomator is considerably slower, the accessibility service gets enabled and
+     * stays enabled for the following lookups).
+     */
+    void warmUp(List<String> appIds) {
+        CompressedShell.getGzip(device);
+        DeviceProperties.prefetch(device);
+        if (!appIds.isEmpty()) {
+            LogcatWaiter.findPids(device, appIds);
+        }
+        if (options.useAccessibilityLookup) {
+            AccessibilityViewLookup.lookup(getShellExecutor(), device, new ArrayList<>());
+        } else {
+            CompressedShell.execute(getShellExecutor(), device, VIEW_DUMP_COMMAND, DeviceController::parseViewBounds);
+        }
+    }
+
+    /**
+     * @return all views currently shown, null if the dump failed
+     */
+    ViewIndex dumpViewIndex() {
+        return CompressedShell.execute(getShellExecutor(), device, VIEW_DUMP_COMMAND, ViewIndex::parse);
+    }
+
+    /**
+     * @return true if the installed enabler app is at least the bundled version
+     */
+    boolean isEnablerInstalled() {
+        String res = shell("dumpsys package " + ENABLER_PACKAGE + " | grep versionCode", ShellExecutor.Kind.SHORT);
+        if (res == null) {
+            return false;
+        }
+        Matcher matcher = Pattern.compile("versionCode=(\\d+)").matcher(res);
+        return matcher.find() && Integer.parseInt(matcher.group(1)) >= ENABLER_VERSION;
+    }
+
+    void installEnabler() throws IOException {
+        // TODO no need to create the tmp file over and over again
+        File tmpfile = File.createTempFile("enabler", "apk");
+        FileOutputStream fos = null;
+        InputStream is = null;
+        try {
+            is = getClass().getResourceAsStream("/de/mobilej/plugin/adc/enabler.apk");
+            fos = new FileOutputStream(tmpfile);
+            byte[] buffer = new byte[4096];
+            int len = 0;
+            while ((len = is.read(buffer)) > 0) {
+                fos.write(buffer, 0, len);
+            }
+        } finally {
+            if (fos != null) {
+                fos.flush();
+                fos.close();
+            }
+            if (is != null) {
+                is.close();
+            }
+        }
+
+        try {
+            device.installPackage(tmpfile.getAbsolutePath(), true);
+        } catch (InstallException ie) {
+            ie.printStackTrace();
+        } finally {
+            tmpfile.delete();
+        }
+
+        shell("pm grant " + ENABLER_PACKAGE + " android.permission.CHANGE_CONFIGURATION", ShellExecutor.Kind.SHORT);
+    }
+
+    /**
+     * Runs an input script within the configured deadline.
+     *
+     * @return false if the script exceeded its deadline and the remaining steps were cancelled
+     */
+    boolean runScript(String text2send, List<String> appIds, StepListener listener) {
+        int timeoutSeconds = options.scriptTimeoutSeconds;
+        scriptDeadline = timeoutSeconds > 0 ? System.currentTimeMillis() + timeoutSeconds * 1000L : Long.MAX_VALUE;
+        try {
+            return runInputScript(text2send, appIds, listener);
+        } finally {
+            scriptDeadline = Long.MAX_VALUE;
+        }
+    }
+
+    private boolean runInputScript(String text2send, List<String> appIds, StepListener listener) {
+        /*
+        Syntax:
+        `tap 130 150` -> sends "input tap 130 150" .... really just "input " and append the command
+        `tap @my.package:id/text` -> first find the center of the given res-id (uiautomator dump)
+        `tap @*:id/text` -> support wildcards
+        `swipe 10 20 30 40` -> simple swipe (px)
+        `swipe @*:id/my_id[10,20] @*:id/my_id[50,60]` -> swipe from 10% of x of given view, 20% of y of given view to 50% of x of the view to 60% of y of the view
+        `tap @*:id/button[20,30]` syntax also works in general for @id things
+        ``` -> escapes `
+        `
+        ` -> new line which is not sent
+        `#500` -> wait 500 milliseconds
+        `idle` -> wait until the UI is idle (at most 5 seconds)
+        `idle 2000` -> wait until the UI is idle (at most 2000 milliseconds)
+        `log sync finished` -> wait until one of the project's apps logs a line matching the regex (at most 10 seconds)
+        `log 30000 sync (done|failed)` -> same but wait at most 30000 milliseconds
+        */
+
+        text2send = text2send.replace("```", "\u2764");
+        text2send = text2send + "`";
+        StringTokenizer tokenizer = new StringTokenizer(text2send, "`", true);
+        boolean waitForIdle = options.waitForIdle;
+        boolean pendingInput = false;
+        boolean inCommand = false;
+        String plainText = null;
+        String commandText = null;
+        while (tokenizer.hasMoreElements()) {
+            if (getShellExecutor().isExpired()) {
+                return false;
+            }
+            String next = tokenizer.nextToken();
+
+            if ("`".equals(next)) {
+                if (!inCommand) {
+                    inCommand = true;
+
+                    if (plainText != null) {
+                        listener.beforeStep(plainText);
+                        record(SessionLog.Type.TEXT, plainText.replace("\u2764", "`"));
+                    }
+                    long start = System.currentTimeMillis();
+                    if (plainText != null && options.useAdcKeyboard && ImeTextSender.send(getShellExecutor(), device, plainText.replace("\u2764", "`"))) {
+                        if (waitForIdle) {
+                            waitForIdle(UiIdleWaiter.DEFAULT_TIMEOUT_MS);
+                        }
+                        listener.stepFinished(plainText, System.currentTimeMillis() - start, true);
+                        pendingInput = !waitForIdle;
+                        plainText = null;
+                        commandText = null;
+                    } else if (plainText != null) {
+
+                        boolean success = true;
+                        StringTokenizer tokenizer2 = new StringTokenizer(plainText," \t\r\n", true);
+                        while(tokenizer2.hasMoreElements() && !getShellExecutor().isExpired()) {
+                            String part = tokenizer2.nextToken();
+                            String escaped = part.replace("\"", "\\\"").replace("\u2764", "\\`");
+                            success &= shell("input text \"" + escaped + "\"", ShellExecutor.Kind.INPUT) != null;
+
+                            if (!waitForIdle) {
+                                try {
+                                    Thread.sleep(400); // wait a bit - give the device some time to process
+                                } catch (InterruptedException e) {
+                                    //ignored
+                                }
+                            }
+                        }
+                        if (waitForIdle) {
+                            waitForIdle(UiIdleWaiter.DEFAULT_TIMEOUT_MS);
+                        }
+                        listener.stepFinished(plainText, System.currentTimeMillis() - start, success);
+                        pendingInput = !waitForIdle;
+                        plainText = null;
+                        commandText = null;
+                    }
+                } else {
+                    inCommand = false;
+                    if (commandText != null) {
+                        commandText = commandText.replace("\r", "").replace("\n", "");
+                        if (commandText.length() > 0) {
+                            listener.beforeStep(commandText);
+                            long start = System.currentTimeMillis();
+                            boolean success = true;
+                            if (commandText.startsWith("#")) {
+                                record(SessionLog.Type.STEP, commandText, commandText);
+                                try {
+                                    long requested = Long.parseLong(commandText.substring(1));
+                                    long wait = Math.max(0, getShellExecutor().limit(requested));
+                                    Thread.sleep(wait);
+                                    // negative waits are invalid, a wait cut short by the deadline ends the script
+                                    success = requested >= 0 && wait >= requested;
+                                } catch (NumberFormatException e) {
+                                    success = false;
+                                } catch (InterruptedException e) {
+                                    // do nothing
+                                }
+                            } else if (commandText.equals("idle") || commandText.startsWith("idle ")) {
+                                record(SessionLog.Type.STEP, commandText, commandText);
+                                String timeout = commandText.substring(4).trim();
+                                try {
+                                    success = waitForIdle(timeout.length() > 0 ? Long.parseLong(timeout) : UiIdleWaiter.DEFAULT_TIMEOUT_MS);
+                                    pendingInput = false;
+                                } catch (NumberFormatException e) {
+                                    success = false;
+                                }
+                            } else if (commandText.startsWith("log ")) {
+                                String logStep = commandText.replace("\u2764", "`");
+                                record(SessionLog.Type.STEP, logStep, logStep);
+                                success = waitForLog(logStep.substring(4).trim(), appIds);
+                            } else {
+                                String inputCommand = commandText;
+                                if (inputCommand.contains("@")) {
+                                    inputCommand = processViewIds(inputCommand);
+                                }
+                                record(SessionLog.Type.STEP, commandText.replace("\u2764", "`"), inputCommand.replace("\u2764", "`"));
+
+                                success = shell("input " + inputCommand, ShellExecutor.Kind.INPUT) != null;
+                                if (waitForIdle) {
+                                    waitForIdle(UiIdleWaiter.DEFAULT_TIMEOUT_MS);
+                                }
+                                pendingInput = !waitForIdle;
+                            }
+                            listener.stepFinished(commandText, System.currentTimeMillis() - start, success);
+                            if (getShellExecutor().isExpired()) {
+                                return false;
+                            }
+                        }
+                        commandText = null;
+                        plainText = null;
+                    }
+                }
+            } else {
+                if (inCommand) {
+                    commandText = next;
+                    plainText = null;
+                } else {
+                    plainText = next;
+                    commandText = null;
+                }
+            }
+        }
+
+        if (pendingInput) {
+            try {
+                Thread.sleep(800); // wait a bit - give the device some time to process
+            } catch (InterruptedException e) {
+                //ignored
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a matching line was logged before the timeout
+     */
+    private boolean waitForLog(String args, List<String> appIds) {
+        long timeoutMs = LogcatWaiter.DEFAULT_TIMEOUT_MS;
+        String regex = args;
+        int space = args.indexOf(' ');
+        if (space > 0 && args.substring(0, space).matches("\\d{1,18}")) {
+            timeoutMs = Long.parseLong(args.substring(0, space));
+            regex = args.substring(space + 1);
+        }
+
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return LogcatWaiter.waitFor(device, appIds, pattern, getShellExecutor().limit(timeoutMs)) != null;
+    }
+
+    /**
+     * @return true if the UI is idle
+     */
+    private boolean waitForIdle(long timeoutMs) {
+        try {
+            ShellExecutor executor = getShellExecutor();
+            return UiIdleWaiter.waitForIdle(executor, device, executor.limit(timeoutMs));
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private String processViewIds(String commandText) {
+        /*
+        @<id, supporting wildcards, if no ":" contained it will prepend "*:"> defaults to center of view
+        @<id, supporting wildcards, if no ":" contained it will prepend "*:">[percentX,percentY] percentX/Y in view bounds
+         */
+        Map<String, Rectangle> resIdToBoundsMap = findViewBounds(commandText);
+
+        while (commandText.contains("@")) {
+            int idx = commandText.indexOf("@");
+            StringBuilder sb = new StringBuilder();
+            int i = idx;
+            while (i < commandText.length() && commandText.charAt(i) > ' ') {
+                sb.append(commandText.charAt(i));
+                i++;
+            }
+
+            String calculatedCoords = "0 0";
+            String resIdToMatch = sb.substring(1);
+            double percentX = 0.5;
+            double percentY = 0.5;
+
+            if (resIdToMatch.contains("[") && resIdToMatch.contains("]")) {
+                String percentPart = resIdToMatch.substring(resIdToMatch.indexOf("[") + 1, resIdToMatch.indexOf("]"));
+                resIdToMatch = resIdToMatch.substring(0, resIdToMatch.indexOf("["));
+                String[] percentParts = percentPart.split(",");
+                try {
+                    percentX = Double.parseDouble(percentParts[0]) / 100;
+                    percentY = Double.parseDouble(percentParts[1]) / 100;
+                } catch (NumberFormatException nfe) {
+                    nfe.printStackTrace();
+                }
+            }
+
+            Rectangle rect = findBounds(resIdToBoundsMap, resIdToMatch);
+            if (rect == null) {
+                rect = new Rectangle(0, 0, 0, 0);
+            }
+            calculatedCoords = "" + (int) (rect.x + rect.width * percentX) + " " + (int) (rect.y + rect.height * percentY);
+
+            commandText = commandText.substring(0, idx) + calculatedCoords + commandText.substring(idx + sb.length());
+        }
+
+        return commandText;
+    }
+
+    /**
+     * The accessibility service only returns the views referenced in the command, the ui dump returns all views.
+     */
+    private Map<String, Rectangle> findViewBounds(String commandText) {
+        Map<String, Rectangle> resIdToBoundsMap = null;
+        if (options.useAccessibilityLookup) {
+            Set<String> patterns = new HashSet<>();
+            Matcher matcher = Pattern.compile("@([^\\s\\[]+)").matcher(commandText);
+            while (matcher.find()) {
+                patterns.add(matcher.group(1));
+            }
+            resIdToBoundsMap = AccessibilityViewLookup.lookup(getShellExecutor(), device, patterns);
+            // the service only sees what is exposed to accessibility, let the dump have a go at missing views
+            if (resIdToBoundsMap != null) {
+                for (String pattern : patterns) {
+                    if (findBounds(resIdToBoundsMap, pattern) == null) {
+                        resIdToBoundsMap = null;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (resIdToBoundsMap == null) {
+            resIdToBoundsMap = CompressedShell.execute(getShellExecutor(), device, VIEW_DUMP_COMMAND, DeviceController::parseViewBounds);
+        }
+        return resIdToBoundsMap != null ? resIdToBoundsMap : new HashMap<>();
+    }
+
+    /**
+     * @return the bounds of the view with the given resource id, ids without a package match any package
+     */
+    private static Rectangle findBounds(Map<String, Rectangle> resIdToBoundsMap, String resId) {
+        Rectangle rect = resIdToBoundsMap.get(resId);
+        if (rect != null) {
+            return rect;
+        }
+        if (!resId.contains(":")) {
+            resId = "*:" + resId;
+        }
+        for (Map.Entry<String, Rectangle> entry : resIdToBoundsMap.entrySet()) {
+            if (wildcardMatch(resId, entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, Rectangle> parseViewBounds(Reader views) throws IOException {
+        HashMap<String, Rectangle> resIdToBoundsMap = new HashMap<>();
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(views);
+
+            int eventType;
+            while ((eventType = xpp.getEventType()) != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    if ("node".equals(xpp.getName())) {
+                        String bounds = XmlPullUtil.getAttributeValue(xpp, "bounds");
+                        String resId = XmlPullUtil.getAttributeValue(xpp, "resource-id");
+
+                        if (resId != null && resId.length() > 0) {
+                            resIdToBoundsMap.put(resId, ViewIndex.parseBounds(bounds));
+                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG && xpp.getDepth() == 1) {
+                    // end of the root element - don't parse whatever might follow the document
+                    break;
+                }
+                xpp.next();
+
+            }
+
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        }
+        return resIdToBoundsMap;
+    }
+
+    static String parseTopActivity(Reader dump) throws IOException {
+        BufferedReader reader = new BufferedReader(dump);
+        String activity = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int idx = line.lastIndexOf("ACTIVITY ");
+            if (idx >= 0) {
+                activity = line.substring(idx + 9);
+            }
+        }
+        return activity;
+    }
+
+    public static boolean wildcardMatch(final String toMatch, final String value) {
+        StringBuilder patternStringBuilder = new StringBuilder();
+        for (final char c : toMatch.toCharArray()) {
+            switch (c) {
+                case '?':
+                    patternStringBuilder.append(".?");
+                    break;
+                case '*':
+                    patternStringBuilder.append(".*");
+                    break;
+                default:
+                    patternStringBuilder.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        Pattern pattern = Pattern.compile(patternStringBuilder.toString());
+        return pattern.matcher(value).matches();
+    }
+}
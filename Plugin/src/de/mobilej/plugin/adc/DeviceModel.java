@@ -0,0 +1,137 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import javax.swing.*;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.awt.*;
+
+/**
+ * The device combo box model of one tool window: a "none" entry followed by the devices of the shared
+ * {@link DeviceService}, plus the selection of this window.
+ *
+ * A selected device which gets disconnected stays selected and is used again once it reconnects.
+ */
+class DeviceModel extends AbstractListModel<String> implements ComboBoxModel<String>, ListDataListener {
+
+    private final DeviceService service;
+    private final String noneItem;
+
+    private volatile String selectedSerial;
+
+    DeviceModel(DeviceService service, String noneItem) {
+        this.service = service;
+        this.noneItem = noneItem;
+    }
+
+    /**
+     * Starts following the devices of the service, {@link #dispose()} stops it
+     */
+    void connect() {
+        service.addListDataListener(this);
+    }
+
+    void dispose() {
+        service.removeListDataListener(this);
+    }
+
+    /**
+     * @return the selected device if it is online, null otherwise
+     */
+    IDevice getSelectedDevice() {
+        IDevice device = service.getDevice(selectedSerial);
+        return device != null && device.isOnline() ? device : null;
+    }
+
+    boolean isSelected(String serial) {
+        return serial.equals(selectedSerial);
+    }
+
+    /**
+     * Repaints the selected item after its device changed
+     */
+    void selectedDeviceUpdated() {
+        fireContentsChanged(this, -1, -1);
+    }
+
+    /**
+     * Text to display for an item of this model
+     */
+    String getLabel(Object item) {
+        if (item == null || noneItem.equals(item)) {
+            return noneItem;
+        }
+        IDevice device = service.getDevice(item.toString());
+        if (device == null) {
+            return item + " (disconnected)";
+        }
+        if (!device.isOnline()) {
+            return item + " (" + String.valueOf(device.getState()).toLowerCase() + ")";
+        }
+        return item.toString();
+    }
+
+    ListCellRenderer<Object> createRenderer() {
+        return new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                return super.getListCellRendererComponent(list, getLabel(value), index, isSelected, cellHasFocus);
+            }
+        };
+    }
+
+    @Override
+    public void setSelectedItem(Object item) {
+        String serial = item == null || noneItem.equals(item) ? null : item.toString();
+        if (serial == null ? selectedSerial != null : !serial.equals(selectedSerial)) {
+            selectedSerial = serial;
+            fireContentsChanged(this, -1, -1);
+        }
+    }
+
+    @Override
+    public Object getSelectedItem() {
+        return selectedSerial != null ? selectedSerial : noneItem;
+    }
+
+    @Override
+    public int getSize() {
+        return service.getSize() + 1;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return index == 0 ? noneItem : service.getElementAt(index - 1);
+    }
+
+    // the entries of the service are shifted by the "none" entry
+
+    @Override
+    public void intervalAdded(ListDataEvent e) {
+        fireIntervalAdded(this, e.getIndex0() + 1, e.getIndex1() + 1);
+    }
+
+    @Override
+    public void intervalRemoved(ListDataEvent e) {
+        fireIntervalRemoved(this, e.getIndex0() + 1, e.getIndex1() + 1);
+    }
+
+    @Override
+    public void contentsChanged(ListDataEvent e) {
+        fireContentsChanged(this, e.getIndex0() + 1, e.getIndex1() + 1);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the system properties and global settings of devices, all of them are fetched with a single shell command.
+ *
+ * Properties changed through ADC are updated in the cache right away, properties changed by others are picked up
+ * once the cached values are older than {@link #MAX_AGE_MS}.
+ */
+class DeviceProperties {
+
+    static final long MAX_AGE_MS = 30000;
+
+    private static final String SETTINGS_MARKER = "ADC_GLOBAL_SETTINGS";
+    private static final String FETCH_COMMAND = "getprop; echo " + SETTINGS_MARKER + "; settings list global";
+    private static final Pattern PROPERTY_LINE = Pattern.compile("^\\[(.*?)\\]: \\[(.*)\\]$", Pattern.MULTILINE);
+    private static final Pattern SETTING_LINE = Pattern.compile("^([^=\\s]+)=(.*)$", Pattern.MULTILINE);
+
+    private static final Map<String, Snapshot> bySerial = new ConcurrentHashMap<>();
+
+    private static class Snapshot {
+        final long time = System.currentTimeMillis();
+        final Map<String, String> values;
+        final Map<String, String> globalSettings;
+
+        Snapshot(Map<String, String> values, Map<String, String> globalSettings) {
+            this.values = values;
+            this.globalSettings = globalSettings;
+        }
+    }
+
+    private DeviceProperties() {
+    }
+
+    /**
+     * Fetches all properties of the device into the cache
+     */
+    static void prefetch(IDevice device) {
+        refresh(device);
+    }
+
+    /**
+     * @return the value of the property, null if it isn't set or couldn't be fetched
+     */
+    static String get(IDevice device, String name) {
+        Snapshot snapshot = getSnapshot(device);
+        return snapshot != null ? snapshot.values.get(name) : null;
+    }
+
+    /**
+     * @return the value of the global setting, null if it isn't set or couldn't be fetched
+     */
+    static String getGlobalSetting(IDevice device, String name) {
+        Snapshot snapshot = getSnapshot(device);
+        return snapshot != null ? snapshot.globalSettings.get(name) : null;
+    }
+
+    private static Snapshot getSnapshot(IDevice device) {
+        Snapshot snapshot = bySerial.get(device.getSerialNumber());
+        if (snapshot == null || System.currentTimeMillis() - snapshot.time > MAX_AGE_MS) {
+            snapshot = refresh(device);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Fetches all properties of the device
+     */
+    private static Snapshot refresh(IDevice device) {
+        String output = ShellExecutor.DEFAULT.execute(device, FETCH_COMMAND, ShellExecutor.Kind.SHORT);
+        if (output == null) {
+            return null;
+        }
+
+        output = output.replace("\r", "");
+        int marker = output.indexOf(SETTINGS_MARKER);
+        String properties = marker >= 0 ? output.substring(0, marker) : output;
+        String settings = marker >= 0 ? output.substring(marker + SETTINGS_MARKER.length()) : "";
+
+        Map<String, String> values = new ConcurrentHashMap<>();
+        Matcher matcher = PROPERTY_LINE.matcher(properties);
+        while (matcher.find()) {
+            values.put(matcher.group(1), matcher.group(2));
+        }
+        Map<String, String> globalSettings = new ConcurrentHashMap<>();
+        matcher = SETTING_LINE.matcher(settings);
+        while (matcher.find()) {
+            globalSettings.put(matcher.group(1), matcher.group(2));
+        }
+        Snapshot snapshot = new Snapshot(values, globalSettings);
+        bySerial.put(device.getSerialNumber(), snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Updates the cached value after the property was changed on the device, null if it isn't set
+     */
+    static void put(IDevice device, String name, String value) {
+        Snapshot snapshot = bySerial.get(device.getSerialNumber());
+        if (snapshot != null) {
+            if (value != null) {
+                snapshot.values.put(name, value);
+            } else {
+                snapshot.values.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Updates the cached value after the global setting was changed on the device, null if it isn't set
+     */
+    static void putGlobalSetting(IDevice device, String name, String value) {
+        Snapshot snapshot = bySerial.get(device.getSerialNumber());
+        if (snapshot != null) {
+            if (value != null) {
+                snapshot.globalSettings.put(name, value);
+            } else {
+                snapshot.globalSettings.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached values, e.g. after a change with unknown effects on the properties
+     */
+    static void invalidate(IDevice device) {
+        bySerial.remove(device.getSerialNumber());
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the connected devices for all open projects.
+ *
+ * There is one listener on the debug bridge and one map of the devices keyed by their serial number, no matter how
+ * many tool windows are open. The map is updated directly from the events of the bridge, so looking up a device is
+ * cheap and reflects the current state - also from background threads. The list of serials (the shared part of the
+ * device combo boxes) is updated entry by entry on the event dispatch thread.
+ *
+ * Tool windows subscribe when they are created and unsubscribe when they are disposed. Without subscribers the
+ * service stops listening and forgets all devices.
+ */
+public class DeviceService extends AbstractListModel<String> implements AndroidDebugBridge.IDeviceChangeListener, Disposable {
+
+    interface Subscriber {
+        /**
+         * Called on the event dispatch thread when a device got connected, disconnected or changed its state
+         */
+        void deviceUpdated(String serial);
+
+        /**
+         * @return the ids of the apps of the subscriber's project, used to prepare new devices
+         */
+        List<String> getAppIds();
+    }
+
+    private final Storage storage = ServiceManager.getService(Storage.class);
+    private final Map<String, IDevice> bySerial = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Map<String, Object> setupLocks = new ConcurrentHashMap<>();
+
+    // only accessed on the event dispatch thread
+    private final List<String> serials = new ArrayList<>();
+    private final Set<String> onlineSerials = new HashSet<>();
+    private boolean listening = false;
+
+    static DeviceService getInstance() {
+        return ServiceManager.getService(DeviceService.class);
+    }
+
+    /**
+     * Must be called on the event dispatch thread. The first subscriber starts listening to the bridge.
+     */
+    void subscribe(AndroidDebugBridge bridge, Subscriber subscriber) {
+        subscribers.add(subscriber);
+        if (!listening) {
+            listening = true;
+            AndroidDebugBridge.addDeviceChangeListener(this);
+            for (IDevice device : bridge.getDevices()) {
+                bySerial.put(device.getSerialNumber(), device);
+            }
+            serials.addAll(bySerial.keySet());
+            if (!serials.isEmpty()) {
+                fireIntervalAdded(this, 0, serials.size() - 1);
+            }
+            for (String serial : serials) {
+                updateOnlineState(serial);
+            }
+        }
+    }
+
+    /**
+     * Must be called on the event dispatch thread
+     */
+    void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        if (subscribers.isEmpty()) {
+            stopListening();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        stopListening();
+    }
+
+    private void stopListening() {
+        if (!listening) {
+            return;
+        }
+        listening = false;
+        AndroidDebugBridge.removeDeviceChangeListener(this);
+        for (IDevice device : bySerial.values()) {
+            forgetCaches(device);
+        }
+        bySerial.clear();
+        onlineSerials.clear();
+        int size = serials.size();
+        serials.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    IDevice getDevice(String serial) {
+        return serial != null ? bySerial.get(serial) : null;
+    }
+
+    List<IDevice> getOnlineDevices() {
+        List<IDevice> online = new ArrayList<>();
+        for (IDevice device : bySerial.values()) {
+            if (device.isOnline()) {
+                online.add(device);
+            }
+        }
+        return online;
+    }
+
+    /**
+     * Installs the enabler app unless the current version was already installed on the device. Only callers for
+     * the same device wait for each other, the install on one device doesn't hold up the others.
+     */
+    void setupDevice(IDevice device) {
+        synchronized (setupLocks.computeIfAbsent(device.getSerialNumber(), serial -> new Object())) {
+            if (!claimSetup(device)) {
+                return;
+            }
+
+            try {
+                new DeviceController(device, getControllerOptions()).installEnabler();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records the install of the current enabler version on the device
+     *
+     * @return false if it was installed already
+     */
+    private synchronized boolean claimSetup(IDevice device) {
+        String serial = "<"+device.getSerialNumber()+"@"+DeviceController.ENABLER_VERSION+">";
+        String alreadyInstalledOn = storage.getInstalledOnDevices();
+        if(alreadyInstalledOn==null){
+            alreadyInstalledOn = "";
+        }
+        if(alreadyInstalledOn.contains(serial)){
+            return false;
+        }
+        storage.setInstalledOnDevices(alreadyInstalledOn+serial);
+        return true;
+    }
+
+    DeviceController.Options getControllerOptions() {
+        DeviceController.Options options = new DeviceController.Options();
+        options.waitForIdle = storage.isWaitForIdle();
+        options.useAdcKeyboard = storage.isUseAdcKeyboard();
+        options.useAccessibilityLookup = storage.isUseAccessibilityLookup();
+        options.shellRetries = storage.getShellRetries();
+        options.scriptTimeoutSeconds = storage.getScriptTimeoutSeconds();
+        return options;
+    }
+
+    @Override
+    public void deviceConnected(IDevice device) {
+        bySerial.put(device.getSerialNumber(), device);
+        SwingUtilities.invokeLater(() -> deviceUpdated(device.getSerialNumber()));
+    }
+
+    @Override
+    public void deviceDisconnected(IDevice device) {
+        if (bySerial.remove(device.getSerialNumber(), device)) {
+            forgetCaches(device);
+        }
+        SwingUtilities.invokeLater(() -> deviceUpdated(device.getSerialNumber()));
+    }
+
+    @Override
+    public void deviceChanged(IDevice device, int changeMask) {
+        if ((changeMask & (IDevice.CHANGE_STATE | IDevice.CHANGE_BUILD_INFO)) == 0) {
+            return;
+        }
+        bySerial.put(device.getSerialNumber(), device);
+        SwingUtilities.invokeLater(() -> deviceUpdated(device.getSerialNumber()));
+    }
+
+    /**
+     * Brings the entry of the given serial in line with the map and notifies the subscribers
+     */
+    private void deviceUpdated(String serial) {
+        if (!listening) {
+            return;
+        }
+
+        int idx = serials.indexOf(serial);
+        boolean present = bySerial.containsKey(serial);
+        if (present && idx < 0) {
+            serials.add(serial);
+            fireIntervalAdded(this, serials.size() - 1, serials.size() - 1);
+        } else if (!present && idx >= 0) {
+            serials.remove(idx);
+            fireIntervalRemoved(this, idx, idx);
+        } else if (idx >= 0) {
+            fireContentsChanged(this, idx, idx);
+        }
+
+        updateOnlineState(serial);
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.deviceUpdated(serial);
+        }
+    }
+
+    private void updateOnlineState(String serial) {
+        IDevice device = bySerial.get(serial);
+        if (device != null && device.isOnline()) {
+            if (onlineSerials.add(serial)) {
+                prewarm(device);
+            }
+        } else {
+            onlineSerials.remove(serial);
+        }
+    }
+
+    /**
+     * Prepares a device which came online in the background, so the first action on it is as fast as the following
+     */
+    private void prewarm(IDevice device) {
+        if (!storage.isPrewarmDevices()) {
+            return;
+        }
+
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            setupDevice(device);
+            Set<String> appIds = new LinkedHashSet<>();
+            for (Subscriber subscriber : subscribers) {
+                appIds.addAll(subscriber.getAppIds());
+            }
+            new DeviceController(device, getControllerOptions()).warmUp(new ArrayList<>(appIds));
+        });
+    }
+
+    private static void forgetCaches(IDevice device) {
+        DeviceProperties.invalidate(device);
+        CompressedShell.forget(device);
+    }
+
+    @Override
+    public int getSize() {
+        return serials.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return serials.get(index);
+    }
+}
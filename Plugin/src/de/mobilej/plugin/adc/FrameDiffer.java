@@ -0,0 +1,103 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.RawImage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Keeps a host side copy of the device screen and only converts the parts of a new raw frame which changed.
+ *
+ * The frame is split into square tiles, each tile is compared byte by byte with the previous frame and only
+ * changed tiles are converted into the image.
+ */
+class FrameDiffer {
+
+    private final int tileSize;
+
+    private byte[] previous;
+    private int width;
+    private int height;
+    private int bpp;
+    private BufferedImage image;
+
+    FrameDiffer(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Applies the given frame.
+     *
+     * @return the area which changed compared to the last frame or null if nothing changed
+     */
+    Rectangle update(RawImage raw) {
+        if (previous == null || raw.width != width || raw.height != height || raw.bpp != bpp) {
+            width = raw.width;
+            height = raw.height;
+            bpp = raw.bpp;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Rectangle all = new Rectangle(0, 0, width, height);
+            convert(raw, all);
+            previous = raw.data;
+            return all;
+        }
+
+        Rectangle dirty = null;
+        for (int ty = 0; ty < height; ty += tileSize) {
+            for (int tx = 0; tx < width; tx += tileSize) {
+                Rectangle tile = new Rectangle(tx, ty, Math.min(tileSize, width - tx), Math.min(tileSize, height - ty));
+                if (tileChanged(raw.data, tile)) {
+                    convert(raw, tile);
+                    dirty = dirty == null ? tile : dirty.union(tile);
+                }
+            }
+        }
+        previous = raw.data;
+        return dirty;
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    private boolean tileChanged(byte[] data, Rectangle tile) {
+        int bytesPerPixel = bpp >> 3;
+        int stride = width * bytesPerPixel;
+        int rowLength = tile.width * bytesPerPixel;
+        for (int y = tile.y; y < tile.y + tile.height; y++) {
+            int start = y * stride + tile.x * bytesPerPixel;
+            for (int i = start; i < start + rowLength; i++) {
+                if (data[i] != previous[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void convert(RawImage raw, Rectangle area) {
+        int bytesPerPixel = bpp >> 3;
+        synchronized (image) {
+            for (int y = area.y; y < area.y + area.height; y++) {
+                int index = (y * width + area.x) * bytesPerPixel;
+                for (int x = area.x; x < area.x + area.width; x++) {
+                    image.setRGB(x, y, raw.getARGB(index));
+                    index += bytesPerPixel;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends text to the input method of the enabler app which commits it in one go.
+ *
+ * The input method is only selected while sending, afterwards the previous input method is restored.
+ */
+class ImeTextSender {
+
+    static final String IME_ID = "mobilej.de.systemproppoker/.AdcInputMethodService";
+
+    private static final String SOCKET_NAME = "adc_ime";
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    /**
+     * The input method waits up to 5 seconds for the commit on the main thread
+     */
+    private static final long READ_TIMEOUT_MS = 6000;
+    private static final long RETRY_INTERVAL_MS = 100;
+
+    private ImeTextSender() {
+    }
+
+    /**
+     * @param executor runs the shell commands and limits waiting for the input method to its deadline
+     * @return true if the text was committed, false if it has to be sent some other way
+     */
+    static boolean send(ShellExecutor executor, IDevice device, String text) {
+        String previousIme = shell(executor, device, "settings get secure default_input_method").trim();
+        shell(executor, device, "ime enable " + IME_ID + "; ime set " + IME_ID);
+        try {
+            int port = findFreePort();
+            device.createForward(port, SOCKET_NAME, IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+            try {
+                return sendOverSocket(executor, port, text);
+            } finally {
+                device.removeForward(port, SOCKET_NAME, IDevice.DeviceUnixSocketNamespace.ABSTRACT);
+            }
+        } catch (TimeoutException | AdbCommandRejectedException | IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (previousIme.length() > 0 && !"null".equals(previousIme) && !IME_ID.equals(previousIme)) {
+                // restored even if the script ran out of time
+                shell(ShellExecutor.DEFAULT, device, "ime set " + previousIme);
+            }
+        }
+    }
+
+    /**
+     * The input method needs a moment until it is bound to the focused editor. Until then the connection is either
+     * refused (closed by adb) or answered with 0. If the input method doesn't answer in time the text is
+     * considered not sent.
+     */
+    private static boolean sendOverSocket(ShellExecutor executor, int port, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        long deadline = System.currentTimeMillis() + executor.limit(CONNECT_TIMEOUT_MS);
+        while (true) {
+            // a timeout of 0 would block forever
+            int connectTimeout = (int) executor.limit(Math.max(0, deadline - System.currentTimeMillis()));
+            int readTimeout = (int) executor.limit(READ_TIMEOUT_MS);
+            if (connectTimeout <= 0 || readTimeout <= 0) {
+                return false;
+            }
+
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), connectTimeout);
+                socket.setSoTimeout(readTimeout);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.flush();
+
+                InputStream in = socket.getInputStream();
+                if (in.read() == 1) {
+                    return true;
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                // not ready yet
+            }
+
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String shell(ShellExecutor executor, IDevice device, String cmd) {
+        String output = executor.execute(device, cmd, ShellExecutor.Kind.SHORT);
+        return output != null ? output : "";
+    }
+}
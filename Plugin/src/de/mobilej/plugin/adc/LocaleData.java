@@ -0,0 +1,41 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+/**
+ * Holder for Locale Data
+ */
+class LocaleData {
+    final String name;
+    final String language;
+    final String county;
+
+    LocaleData(String name, String language, String county) {
+        this.name = name;
+        this.language = language;
+        this.county = county;
+    }
+
+    /**
+     * Checks if the given value of "persist.sys.locale" denotes this locale.
+     */
+    boolean matches(String deviceLocale) {
+        return deviceLocale != null && deviceLocale.startsWith(language) && deviceLocale.endsWith(county);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+import com.android.ddmlib.TimeoutException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Switches devices through a list of locales and takes a screenshot of the current screen for each locale.
+ *
+ * Each device is swept by its own worker so every screenshot set comes from a single device. Encoding and
+ * writing the PNG happens on a separate pool, so the host side work for one locale overlaps with switching
+ * the device to the next one.
+ */
+class LocaleSweep {
+
+    interface Listener {
+        void progress(int done, int total, String message);
+
+        boolean isCancelled();
+    }
+
+    /**
+     * Outcome of a sweep, the failed entries name the locale and the device.
+     */
+    static class Result {
+        final AtomicInteger written = new AtomicInteger();
+        final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    private static final long SAMPLE_INTERVAL_MS = 150;
+    private static final long CHANGE_GRACE_MS = 1500;
+    private static final long STABLE_TIMEOUT_MS = 8000;
+
+    private final List<IDevice> devices;
+    private final LocaleData[] locales;
+    private final File outputDir;
+
+    LocaleSweep(List<IDevice> devices, LocaleData[] locales, File outputDir) {
+        this.devices = devices;
+        this.locales = locales;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Runs the sweep and blocks until all screenshots are written. Every device goes through all locales on its
+     * own, with more than one device each one writes into its own sub directory.
+     */
+    Result run(Listener listener) throws InterruptedException {
+        // the locale list names some language/country pairs more than once, they all end up in the same file
+        Map<String, LocaleData> distinct = new LinkedHashMap<>();
+        for (LocaleData ld : locales) {
+            distinct.putIfAbsent(getFileName(ld), ld);
+        }
+
+        final int total = distinct.size() * devices.size();
+        Result result = new Result();
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService deviceWorkers = Executors.newFixedThreadPool(devices.size());
+        ExecutorService writers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        List<Future<?>> deviceResults = new ArrayList<>();
+        List<Future<?>> writeResults = new ArrayList<>();
+
+        for (IDevice device : devices) {
+            final File deviceDir = devices.size() > 1 ? new File(outputDir, ToolWindowFactory.toFileName(device.getSerialNumber())) : outputDir;
+            deviceResults.add(deviceWorkers.submit(() -> {
+                if (!deviceDir.isDirectory() && !deviceDir.mkdirs()) {
+                    result.failed.add(deviceDir.getPath() + " (" + device.getName() + ")");
+                    return null;
+                }
+                LocaleData original = findLocale(getSysProp(device, "persist.sys.locale"));
+                RawImage previous = grabScreen(device);
+
+                for (LocaleData ld : distinct.values()) {
+                    if (listener.isCancelled()) {
+                        break;
+                    }
+                    shell(device, "am start -a SETMYLOCALE --es language " + ld.language + " --es country " + ld.county);
+                    final RawImage frame = waitForStableScreen(device, previous);
+                    previous = frame;
+
+                    final String label = ld.name + " (" + device.getName() + ")";
+                    if (frame != null) {
+                        final File target = new File(deviceDir, getFileName(ld));
+                        synchronized (writeResults) {
+                            writeResults.add(writers.submit(() -> {
+                                try {
+                                    writePng(frame, target);
+                                    result.written.incrementAndGet();
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                    result.failed.add(label);
+                                }
+                            }));
+                        }
+                    } else {
+                        result.failed.add(label);
+                    }
+                    listener.progress(done.incrementAndGet(), total, label);
+                }
+
+                if (original != null) {
+                    shell(device, "am start -a SETMYLOCALE --es language " + original.language + " --es country " + original.county);
+                }
+                return null;
+            }));
+        }
+
+        try {
+            waitFor(deviceResults);
+            synchronized (writeResults) {
+                waitFor(writeResults);
+            }
+            return result;
+        } finally {
+            deviceWorkers.shutdownNow();
+            writers.shutdown();
+        }
+    }
+
+    private static String getFileName(LocaleData ld) {
+        return ld.language + "_" + ld.county + ".png";
+    }
+
+    private LocaleData findLocale(String deviceLocale) {
+        for (LocaleData ld : locales) {
+            if (ld.matches(deviceLocale)) {
+                return ld;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Polls the framebuffer until two consecutive frames are identical. Right after the locale switch the screen
+     * might not have started to change yet, so for a short grace period a stable frame is only accepted if it
+     * differs from the frame taken for the previous locale.
+     */
+    private RawImage waitForStableScreen(IDevice device, RawImage before) throws InterruptedException {
+        long beforeHash = before != null ? hash(before) : -1;
+        long start = System.currentTimeMillis();
+        long lastHash = -1;
+        RawImage frame = null;
+
+        while (true) {
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+            RawImage next = grabScreen(device);
+            if (next == null) {
+                return frame;
+            }
+            frame = next;
+
+            long elapsed = System.currentTimeMillis() - start;
+            long h = hash(frame);
+            if (h == lastHash && (h != beforeHash || elapsed > CHANGE_GRACE_MS)) {
+                return frame;
+            }
+            if (elapsed > STABLE_TIMEOUT_MS) {
+                return frame;
+            }
+            lastHash = h;
+        }
+    }
+
+    private static long hash(RawImage image) {
+        CRC32 crc = new CRC32();
+        crc.update(image.data, 0, image.data.length);
+        return crc.getValue();
+    }
+
+    private static RawImage grabScreen(IDevice device) {
+        try {
+            return device.getScreenshot();
+        } catch (TimeoutException | AdbCommandRejectedException | IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void shell(IDevice device, String cmd) {
+        ShellExecutor.DEFAULT.execute(device, cmd, ShellExecutor.Kind.SHORT);
+    }
+
+    private static String getSysProp(IDevice device, String propName) {
+        try {
+            return device.getSystemProperty(propName).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void writePng(RawImage raw, File target) throws IOException {
+        ImageIO.write(toBufferedImage(raw), "png", target);
+    }
+
+    static BufferedImage toBufferedImage(RawImage raw) {
+        BufferedImage image = new BufferedImage(raw.width, raw.height, BufferedImage.TYPE_INT_ARGB);
+        int bytesPerPixel = raw.bpp >> 3;
+        int index = 0;
+        for (int y = 0; y < raw.height; y++) {
+            for (int x = 0; x < raw.width; x++) {
+                image.setRGB(x, y, raw.getARGB(index));
+                index += bytesPerPixel;
+            }
+        }
+        return image;
+    }
+
+    private static void waitFor(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+
+/**
+ * Runs the same input script on several devices in lockstep: a step doesn't start on any device before all
+ * devices finished the previous step. View ids are still resolved by every device on its own.
+ *
+ * Every device taking part has to call {@link #leave()} exactly once when it's done (or failed), otherwise
+ * the remaining devices wait forever.
+ */
+class Lockstep {
+
+    interface ReportListener {
+        /**
+         * Called once all devices finished a step, from the thread of the device finishing last
+         */
+        void stepFinished(StepReport report);
+    }
+
+    static class StepReport {
+        final int index;
+        final String step;
+        /**
+         * Duration of the step by serial, in the order the devices finished it
+         */
+        final Map<String, Long> durationsMs = new LinkedHashMap<>();
+        final Set<String> failed = new LinkedHashSet<>();
+        private long firstFinish = Long.MAX_VALUE;
+        private long lastFinish = Long.MIN_VALUE;
+
+        StepReport(int index, String step) {
+            this.index = index;
+            this.step = step;
+        }
+
+        private synchronized void add(String serial, long durationMs, boolean success, long finishedAt) {
+            durationsMs.put(serial, durationMs);
+            if (!success) {
+                failed.add(serial);
+            }
+            firstFinish = Math.min(firstFinish, finishedAt);
+            lastFinish = Math.max(lastFinish, finishedAt);
+        }
+
+        /**
+         * @return the time between the first and the last device finishing the step
+         */
+        synchronized long getSkewMs() {
+            return durationsMs.isEmpty() ? 0 : lastFinish - firstFinish;
+        }
+
+        /**
+         * @return the serial of the device finishing the step last
+         */
+        synchronized String getSlowest() {
+            String slowest = null;
+            for (String serial : durationsMs.keySet()) {
+                slowest = serial;
+            }
+            return slowest;
+        }
+    }
+
+    private final Map<Integer, StepReport> reports = new ConcurrentHashMap<>();
+    private final Phaser phaser;
+
+    Lockstep(int devices, ReportListener listener) {
+        // phase n completes when every device reached step n, i.e. finished step n - 1 (or left)
+        phaser = new Phaser(devices) {
+            @Override
+            protected boolean onAdvance(int phase, int registeredParties) {
+                StepReport report = reports.remove(phase - 1);
+                if (report != null) {
+                    listener.stepFinished(report);
+                }
+                return registeredParties == 0;
+            }
+        };
+    }
+
+    /**
+     * @return a listener holding the device back before every step until all devices got there, reporting the
+     * steps to the given delegate as well
+     */
+    DeviceController.StepListener wrap(String serial, DeviceController.StepListener delegate) {
+        return new DeviceController.StepListener() {
+            private int index = 0;
+
+            @Override
+            public void beforeStep(String step) {
+                phaser.arriveAndAwaitAdvance();
+            }
+
+            @Override
+            public void stepFinished(String step, long durationMs, boolean success) {
+                long now = System.currentTimeMillis();
+                int stepIndex = index++;
+                reports.computeIfAbsent(stepIndex, i -> new StepReport(i, step.trim())).add(serial, durationMs, success, now);
+                delegate.stepFinished(step, durationMs, success);
+            }
+        };
+    }
+
+    /**
+     * The device finished the script or gave up, the others don't wait for it anymore
+     */
+    void leave() {
+        phaser.arriveAndDeregister();
+    }
+
+    /**
+     * Runs the script on all controllers in lockstep
+     *
+     * @return false if the script exceeded its deadline on any device
+     */
+    static boolean run(List<DeviceController> controllers, String script, List<String> appIds, ReportListener listener) {
+        Lockstep lockstep = new Lockstep(controllers.size(), listener);
+        ExecutorService executor = Executors.newFixedThreadPool(controllers.size());
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (DeviceController controller : controllers) {
+            String serial = controller.getDevice().getSerialNumber();
+            results.add(executor.submit(() -> {
+                try {
+                    return controller.runScript(script, appIds, lockstep.wrap(serial, (step, durationMs, success) -> {
+                    }));
+                } finally {
+                    lockstep.leave();
+                }
+            }));
+        }
+
+        boolean completed = true;
+        for (Future<Boolean> result : results) {
+            try {
+                completed &= result.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+                completed = false;
+            }
+        }
+        executor.shutdown();
+        return completed;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Follows logcat of a device until a line of one of the given apps matches a pattern.
+ *
+ * Lines are matched while they are received, only the current line is buffered (and cut at
+ * {@link #MAX_LINE_LENGTH}). As soon as a line matched or the timeout expired the logcat command is cancelled.
+ * Lines of processes which aren't known to belong to the apps are kept for a short while and the processes are
+ * resolved again in the background, so apps (re)starting during the wait are matched as well.
+ */
+class LogcatWaiter {
+
+    static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final int MAX_UNRESOLVED_LINES = 200;
+    private static final long UNRESOLVED_WINDOW_MS = 3000;
+    private static final long PID_REFRESH_MS = 1000;
+
+    private static final ExecutorService pidResolvers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ADC pid resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LogcatWaiter() {
+    }
+
+    /**
+     * @param appIds apps whose lines are matched, lines of all processes are matched if empty
+     * @return the matching line or null if the timeout expired first
+     */
+    static String waitFor(IDevice device, Collection<String> appIds, Pattern pattern, long timeoutMs) {
+        String startMarker = "ADC_LOGCAT_START_" + System.nanoTime();
+        MatchingReceiver receiver = new MatchingReceiver(device, appIds, pattern, startMarker, System.currentTimeMillis() + timeoutMs);
+        try {
+            // -T only has a resolution of seconds: start at the beginning of the current second (taking the time on
+            // the device avoids clock differences) and skip everything up to the marker logged right before
+            String cmd = "T=\"$(date +'%m-%d %H:%M:%S.000')\"; log -t ADC " + startMarker + "; logcat -v threadtime -T \"$T\"";
+            // no timeout for missing output - the receiver cancels
+            device.executeShellCommand(cmd, receiver, 0, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e) {
+            e.printStackTrace();
+        }
+        return receiver.match;
+    }
+
+    /**
+     * Finds the processes of the given apps (including processes like "my.app:remote"). Newer versions of ps need
+     * "-A" to list all processes, older ones list all processes by default and treat "-A" as a filter - so just
+     * run both.
+     */
+    static Set<String> findPids(IDevice device, Collection<String> appIds) {
+        Set<String> pids = new HashSet<>();
+        String output = ShellExecutor.DEFAULT.execute(device, "ps -A 2>/dev/null; ps", ShellExecutor.Kind.SHORT);
+        if (output == null) {
+            return pids;
+        }
+
+        for (String line : output.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length < 2) {
+                continue;
+            }
+            String name = columns[columns.length - 1];
+            for (String appId : appIds) {
+                if (name.equals(appId) || name.startsWith(appId + ":")) {
+                    pids.add(columns[1]);
+                }
+            }
+        }
+        return pids;
+    }
+
+    private static class UnresolvedLine {
+        final String text;
+        final long receivedAt;
+
+        UnresolvedLine(String text, long receivedAt) {
+            this.text = text;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private static class MatchingReceiver implements IShellOutputReceiver {
+        private final IDevice device;
+        private final Collection<String> appIds;
+        private final Pattern pattern;
+        private final String startMarker;
+        private final long deadline;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final Deque<UnresolvedLine> unresolved = new ArrayDeque<>();
+        private final AtomicBoolean resolving = new AtomicBoolean();
+        private volatile Set<String> pids;
+        private volatile long pidsResolvedAt;
+        private long unresolvedCheckedAt;
+        private boolean started;
+
+        volatile String match;
+
+        MatchingReceiver(IDevice device, Collection<String> appIds, Pattern pattern, String startMarker, long deadline) {
+            this.device = device;
+            this.appIds = appIds;
+            this.pattern = pattern;
+            this.startMarker = startMarker;
+            this.deadline = deadline;
+            pids = appIds.isEmpty() ? new HashSet<>() : findPids(device, appIds);
+            pidsResolvedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Resolves the processes again in the background, the receiver thread must not block on ps while logcat
+         * keeps streaming.
+         */
+        private void refreshPids() {
+            if (System.currentTimeMillis() - pidsResolvedAt < PID_REFRESH_MS || !resolving.compareAndSet(false, true)) {
+                return;
+            }
+            pidResolvers.submit(() -> {
+                try {
+                    pids = findPids(device, appIds);
+                    pidsResolvedAt = System.currentTimeMillis();
+                } finally {
+                    resolving.set(false);
+                }
+            });
+        }
+
+        /**
+         * Checks the kept lines against newly resolved processes and drops lines which stayed unknown for too long
+         */
+        private void checkUnresolved() {
+            long now = System.currentTimeMillis();
+            long resolvedAt = pidsResolvedAt;
+            if (resolvedAt != unresolvedCheckedAt) {
+                unresolvedCheckedAt = resolvedAt;
+                Set<String> known = pids;
+                for (Iterator<UnresolvedLine> it = unresolved.iterator(); it.hasNext() && match == null; ) {
+                    UnresolvedLine next = it.next();
+                    if (known.contains(pidOf(next.text))) {
+                        matchLine(next.text);
+                        it.remove();
+                    }
+                }
+            }
+            while (!unresolved.isEmpty() && now - unresolved.peekFirst().receivedAt > UNRESOLVED_WINDOW_MS) {
+                unresolved.removeFirst();
+            }
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length && match == null; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    processLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                } else if (b != '\r' && line.size() < MAX_LINE_LENGTH) {
+                    line.write(b);
+                }
+            }
+        }
+
+        private void processLine(String text) {
+            if (!started) {
+                // lines from before the wait started, up to and including the marker
+                started = text.contains(startMarker);
+                return;
+            }
+            if (appIds.isEmpty()) {
+                matchLine(text);
+                return;
+            }
+
+            String pid = pidOf(text);
+            if (pid == null) {
+                return;
+            }
+            if (pids.contains(pid)) {
+                matchLine(text);
+                return;
+            }
+
+            // might be an app process started after the processes got resolved
+            if (unresolved.size() >= MAX_UNRESOLVED_LINES) {
+                unresolved.removeFirst();
+            }
+            unresolved.addLast(new UnresolvedLine(text, System.currentTimeMillis()));
+            refreshPids();
+            checkUnresolved();
+        }
+
+        private void matchLine(String text) {
+            if (pattern.matcher(text).find()) {
+                match = text;
+            }
+        }
+
+        /**
+         * threadtime format: "date time pid tid level tag: message"
+         */
+        private static String pidOf(String text) {
+            StringTokenizer toker = new StringTokenizer(text, " ");
+            if (toker.countTokens() < 3) {
+                return null;
+            }
+            toker.nextToken();
+            toker.nextToken();
+            return toker.nextToken();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            if (match == null && !unresolved.isEmpty()) {
+                refreshPids();
+                checkUnresolved();
+            }
+            return match != null || System.currentTimeMillis() > deadline || Thread.currentThread().isInterrupted();
+        }
+    }
+}
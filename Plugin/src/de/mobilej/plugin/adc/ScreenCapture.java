@@ -0,0 +1,171 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+import com.android.ddmlib.TimeoutException;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Continuously pulls the screen content of a device and reports changed areas.
+ *
+ * If the device can compress shell output the raw output of screencap is gzipped on the device, a mostly static
+ * UI compresses to a small fraction of the frame so this saves most of the USB transfer. Otherwise the raw
+ * framebuffer is pulled. The conversion is done on the host by a {@link FrameDiffer}.
+ * While the screen doesn't change the polling interval backs off and it never polls more often than the
+ * transfer of one frame takes, so at most half of the time is spent transferring frames.
+ */
+class ScreenCapture {
+
+    interface Listener {
+        void frameChanged(BufferedImage image, Rectangle dirty);
+    }
+
+    private static final int TILE_SIZE = 64;
+    private static final long MIN_INTERVAL_MS = 100;
+    private static final long MAX_INTERVAL_MS = 1000;
+    private static final int SCREENCAP_FORMAT_RGBA_8888 = 1;
+
+    private final IDevice device;
+    private final Listener listener;
+    private final FrameDiffer differ = new FrameDiffer(TILE_SIZE);
+
+    private volatile boolean running;
+    private boolean useScreencap = true;
+    private Thread thread;
+
+    ScreenCapture(IDevice device, Listener listener) {
+        this.device = device;
+        this.listener = listener;
+    }
+
+    IDevice getDevice() {
+        return device;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::captureLoop, "ADC screen capture " + device.getSerialNumber());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void captureLoop() {
+        long interval = MIN_INTERVAL_MS;
+        while (running) {
+            long start = System.currentTimeMillis();
+            RawImage raw = grabFrame();
+            long transferTime = System.currentTimeMillis() - start;
+
+            if (raw == null || !running) {
+                interval = MAX_INTERVAL_MS;
+            } else {
+                Rectangle dirty = differ.update(raw);
+                if (dirty != null) {
+                    listener.frameChanged(differ.getImage(), dirty);
+                    interval = MIN_INTERVAL_MS;
+                } else {
+                    interval = Math.min(MAX_INTERVAL_MS, interval * 2);
+                }
+            }
+
+            try {
+                Thread.sleep(Math.max(interval, transferTime));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private RawImage grabFrame() {
+        if (useScreencap && CompressedShell.getGzip(device) != null) {
+            RawImage raw = CompressedShell.executeBinary(ShellExecutor.DEFAULT, ShellExecutor.Kind.DUMP, device, "screencap", ScreenCapture::readScreencap);
+            if (raw != null) {
+                return raw;
+            }
+            // screencap missing or an unknown pixel format - stick to the framebuffer
+            useScreencap = false;
+        }
+        try {
+            return device.getScreenshot();
+        } catch (TimeoutException | AdbCommandRejectedException | IOException e) {
+            // device went away or is busy - try again later
+        }
+        return null;
+    }
+
+    /**
+     * Parses the raw output of screencap: width, height and pixel format as little endian ints, newer versions
+     * add the color space, followed by the pixels.
+     *
+     * @return the frame or null if it isn't RGBA_8888
+     */
+    static RawImage readScreencap(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        byte[] data = out.toByteArray();
+        if (data.length < 12) {
+            return null;
+        }
+
+        int width = readInt(data, 0);
+        int height = readInt(data, 4);
+        int format = readInt(data, 8);
+        int size = width * height * 4;
+        int headerSize = data.length - size;
+        if (format != SCREENCAP_FORMAT_RGBA_8888 || width <= 0 || height <= 0 || (headerSize != 12 && headerSize != 16)) {
+            return null;
+        }
+
+        RawImage raw = new RawImage();
+        raw.version = 1;
+        raw.bpp = 32;
+        raw.size = size;
+        raw.width = width;
+        raw.height = height;
+        raw.red_offset = 0;
+        raw.red_length = 8;
+        raw.green_offset = 8;
+        raw.green_length = 8;
+        raw.blue_offset = 16;
+        raw.blue_length = 8;
+        raw.alpha_offset = 24;
+        raw.alpha_length = 8;
+        raw.data = new byte[size];
+        System.arraycopy(data, headerSize, raw.data, 0, size);
+        return raw;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Shows the frames of a {@link ScreenCapture} scaled to the width of the panel. Optionally the bounds of a view
+ * are outlined on top.
+ */
+class ScreenPreviewPanel extends JComponent {
+
+    private static final int PREFERRED_WIDTH = 270;
+
+    private volatile BufferedImage image;
+    private volatile long frameCount = 0;
+    private volatile Rectangle highlight;
+
+    ScreenPreviewPanel() {
+        setPreferredSize(new Dimension(PREFERRED_WIDTH, PREFERRED_WIDTH * 16 / 9));
+    }
+
+    /**
+     * Called from the capture thread, only repaints the area which changed.
+     */
+    void showFrame(BufferedImage frame, Rectangle dirty) {
+        image = frame;
+        frameCount++;
+        double scale = getScale(frame);
+        repaint((int) Math.floor(dirty.x * scale), (int) Math.floor(dirty.y * scale),
+                (int) Math.ceil(dirty.width * scale) + 1, (int) Math.ceil(dirty.height * scale) + 1);
+    }
+
+    void clear() {
+        image = null;
+        highlight = null;
+        repaint();
+    }
+
+    /**
+     * @return the number of frames shown so far, changes whenever the screen content changed
+     */
+    long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the point on the device shown at the given point of the panel, null if there is no frame there
+     */
+    Point toDevice(Point point) {
+        BufferedImage frame = image;
+        if (frame == null) {
+            return null;
+        }
+        double scale = getScale(frame);
+        int x = (int) (point.x / scale);
+        int y = (int) (point.y / scale);
+        return x < frame.getWidth() && y < frame.getHeight() ? new Point(x, y) : null;
+    }
+
+    /**
+     * @param bounds bounds on the device to outline, null to remove the outline
+     */
+    void setHighlight(Rectangle bounds) {
+        if (bounds == null ? highlight != null : !bounds.equals(highlight)) {
+            highlight = bounds;
+            repaint();
+        }
+    }
+
+    private double getScale(BufferedImage frame) {
+        return Math.min((double) getWidth() / frame.getWidth(), (double) getHeight() / frame.getHeight());
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        BufferedImage frame = image;
+        if (frame == null) {
+            return;
+        }
+
+        double scale = getScale(frame);
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        synchronized (frame) {
+            g2.drawImage(frame, 0, 0, (int) (frame.getWidth() * scale), (int) (frame.getHeight() * scale), null);
+        }
+
+        Rectangle bounds = highlight;
+        if (bounds != null) {
+            g2.setColor(Color.MAGENTA);
+            g2.setStroke(new BasicStroke(2));
+            g2.drawRect((int) (bounds.x * scale), (int) (bounds.y * scale), (int) (bounds.width * scale), (int) (bounds.height * scale));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format of recorded sessions.
+ *
+ * A session starts with a header (magic, version, serial of the recording device, start time) followed by
+ * records. A record is its type, the milliseconds since the previous record and its fields - all numbers are
+ * var-ints. Strings are written once and referenced by their index afterwards, so repeated steps cost a few bytes.
+ * Records are only ever appended, a truncated last record (e.g. the IDE crashed) is ignored when reading.
+ */
+class SessionLog {
+
+    static final int MAGIC = 0x41444353; // "ADCS"
+    static final int VERSION = 1;
+    static final String EXTENSION = "adcs";
+
+    enum Type {
+        /**
+         * A command of an input script: the command as written and with view ids resolved to coordinates
+         */
+        STEP(1),
+        /**
+         * Plain text of an input script
+         */
+        TEXT(2),
+        /**
+         * Pairs of developer toggle id and "1" or "0"
+         */
+        TOGGLES(3),
+        /**
+         * Language and country
+         */
+        LOCALE(4),
+        /**
+         * App ids
+         */
+        CLEAR_DATA(5),
+        /**
+         * App ids
+         */
+        KILL(6);
+
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        static Type of(int code) throws IOException {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown record type " + code);
+        }
+    }
+
+    static class Record {
+        final Type type;
+        /**
+         * Milliseconds since the start of the session
+         */
+        final long timeMs;
+        final String[] fields;
+
+        Record(Type type, long timeMs, String[] fields) {
+            this.type = type;
+            this.timeMs = timeMs;
+            this.fields = fields;
+        }
+
+        @Override
+        public String toString() {
+            if (type == Type.STEP || type == Type.TEXT) {
+                return fields[0].trim();
+            }
+            return type.name().toLowerCase() + " " + String.join(" ", fields);
+        }
+    }
+
+    static class Session {
+        final String serial;
+        final long startTime;
+        final List<Record> records = new ArrayList<>();
+
+        Session(String serial, long startTime) {
+            this.serial = serial;
+            this.startTime = startTime;
+        }
+    }
+
+    private SessionLog() {
+    }
+
+    static Session read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a recorded session");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session version " + version);
+            }
+            Session session = new Session(readString(in), in.readLong());
+
+            List<String> strings = new ArrayList<>();
+            long time = 0;
+            while (true) {
+                int code = in.read();
+                if (code < 0) {
+                    break;
+                }
+                try {
+                    Type type = Type.of(code);
+                    time += readVarLong(in);
+                    String[] fields = new String[(int) readVarLong(in)];
+                    for (int i = 0; i < fields.length; i++) {
+                        int ref = (int) readVarLong(in);
+                        if (ref == 0) {
+                            fields[i] = readString(in);
+                            strings.add(fields[i]);
+                        } else {
+                            fields[i] = strings.get(ref - 1);
+                        }
+                    }
+                    session.records.add(new Record(type, time, fields));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            return session;
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed var-int");
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
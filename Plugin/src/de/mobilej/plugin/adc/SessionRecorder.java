@@ -0,0 +1,111 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends the actions done on a device to a session file, see {@link SessionLog} for the format.
+ *
+ * Every record is flushed right away so a session survives a crash of the IDE. If writing fails the recording
+ * stops, the actions themselves are not affected.
+ */
+class SessionRecorder implements Closeable {
+
+    private final File file;
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private long last;
+    private boolean closed = false;
+
+    SessionRecorder(File file, String serial) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        last = System.currentTimeMillis();
+        out.writeInt(SessionLog.MAGIC);
+        out.writeByte(SessionLog.VERSION);
+        SessionLog.writeString(out, serial);
+        out.writeLong(last);
+        out.flush();
+    }
+
+    static File getDefaultRoot() {
+        return new File(System.getProperty("user.home"), ".adc" + File.separator + "sessions");
+    }
+
+    /**
+     * @return a new file in the default root named after the device and the current time
+     */
+    static File newSessionFile(String serial) {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        return new File(getDefaultRoot(), ToolWindowFactory.toFileName(serial) + "-" + time + "." + SessionLog.EXTENSION);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized void record(SessionLog.Type type, String... fields) {
+        if (closed) {
+            return;
+        }
+        try {
+            long now = Math.max(System.currentTimeMillis(), last);
+            out.writeByte(type.code);
+            SessionLog.writeVarLong(out, now - last);
+            last = now;
+            SessionLog.writeVarLong(out, fields.length);
+            for (String field : fields) {
+                Integer index = strings.get(field);
+                if (index != null) {
+                    SessionLog.writeVarLong(out, index + 1);
+                } else {
+                    SessionLog.writeVarLong(out, 0);
+                    SessionLog.writeString(out, field);
+                    strings.put(field, strings.size());
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
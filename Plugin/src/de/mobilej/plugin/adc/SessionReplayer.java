@@ -0,0 +1,124 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays a recorded session on a device, either at the pace it was recorded or as fast as possible.
+ *
+ * On the device the session was recorded on the resolved coordinates are used, so the replay taps exactly where
+ * the recording did. On other devices view ids are looked up again since layout and resolution differ.
+ * Replaying as fast as possible skips fixed delays ("#500") but still waits for idle UIs and log lines.
+ */
+class SessionReplayer {
+
+    private static final DeviceController.StepListener IGNORE_STEPS = (step, durationMs, success) -> {
+    };
+
+    private final SessionLog.Session session;
+
+    SessionReplayer(SessionLog.Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @param listener called once for every record
+     * @return false if any record failed
+     */
+    boolean replay(DeviceController controller, boolean originalPace, List<String> appIds, DeviceController.StepListener listener) {
+        boolean exact = controller.getDevice().getSerialNumber().equals(session.serial);
+        long start = System.currentTimeMillis();
+        boolean success = true;
+        for (SessionLog.Record record : session.records) {
+            if (originalPace) {
+                long wait = start + record.timeMs - System.currentTimeMillis();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+
+            long recordStart = System.currentTimeMillis();
+            boolean recordSuccess = replay(controller, record, exact, originalPace, appIds);
+            listener.stepFinished(record.toString(), System.currentTimeMillis() - recordStart, recordSuccess);
+            success &= recordSuccess;
+        }
+        return success;
+    }
+
+    private boolean replay(DeviceController controller, SessionLog.Record record, boolean exact, boolean originalPace, List<String> appIds) {
+        switch (record.type) {
+            case STEP:
+                String step = exact ? record.fields[1] : record.fields[0];
+                if (!originalPace && step.startsWith("#")) {
+                    return true;
+                }
+                return controller.runScript("`" + step.replace("`", "```") + "`", appIds, IGNORE_STEPS);
+            case TEXT:
+                return controller.runScript(record.fields[0].replace("`", "```"), appIds, IGNORE_STEPS);
+            case TOGGLES:
+                Map<DeveloperToggle, Boolean> states = new LinkedHashMap<>();
+                for (int i = 0; i + 1 < record.fields.length; i += 2) {
+                    DeveloperToggle toggle = DeveloperToggle.get(record.fields[i]);
+                    if (toggle != null) {
+                        states.put(toggle, "1".equals(record.fields[i + 1]));
+                    }
+                }
+                return controller.applyToggles(states);
+            case LOCALE:
+                return controller.setLocale(record.fields[0], record.fields[1]);
+            case CLEAR_DATA:
+                return controller.clearData(Arrays.asList(record.fields));
+            default:
+                return controller.killProcesses(Arrays.asList(record.fields));
+        }
+    }
+
+    /**
+     * Replays the session on all controllers in parallel
+     *
+     * @return false if any record failed on any device
+     */
+    static boolean replay(List<DeviceController> controllers, SessionLog.Session session, boolean originalPace, List<String> appIds) {
+        SessionReplayer replayer = new SessionReplayer(session);
+        ExecutorService executor = Executors.newFixedThreadPool(controllers.size());
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (DeviceController controller : controllers) {
+            results.add(executor.submit(() -> replayer.replay(controller, originalPace, appIds, IGNORE_STEPS)));
+        }
+
+        boolean success = true;
+        for (Future<Boolean> result : results) {
+            try {
+                success &= result.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+                success = false;
+            }
+        }
+        executor.shutdown();
+        return success;
+    }
+}
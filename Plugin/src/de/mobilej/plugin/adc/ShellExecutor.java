@@ -0,0 +1,224 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs shell commands with a deadline per kind of command and retries them on transient adb errors.
+ *
+ * Retries are delayed by an exponential backoff with jitter. Commands which must not run twice (like input events)
+ * are only retried if adb rejected them, i.e. they didn't run at all. An executor can additionally carry an overall
+ * deadline (e.g. of an input script) which limits the deadlines of all commands run through it.
+ */
+class ShellExecutor {
+
+    enum Kind {
+        /**
+         * getprop, setprop, settings, am, pm and the like
+         */
+        SHORT(10000, true),
+        /**
+         * input events - running them twice isn't harmless
+         */
+        INPUT(10000, false),
+        /**
+         * commands with large outputs like dumpsys or uiautomator dump
+         */
+        DUMP(20000, true),
+        /**
+         * file transfers through the shell
+         */
+        TRANSFER(10 * 60 * 1000, true);
+
+        final long timeoutMs;
+        final boolean repeatable;
+
+        Kind(long timeoutMs, boolean repeatable) {
+            this.timeoutMs = timeoutMs;
+            this.repeatable = repeatable;
+        }
+    }
+
+    static final int DEFAULT_RETRIES = 2;
+    static final ShellExecutor DEFAULT = new ShellExecutor(DEFAULT_RETRIES, Long.MAX_VALUE);
+
+    private static final long BASE_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    private final int retries;
+    private final long deadline;
+
+    /**
+     * @param retries  how often a failed command is retried
+     * @param deadline point in time (as in System.currentTimeMillis()) no command may run past,
+     *                 Long.MAX_VALUE for none
+     */
+    ShellExecutor(int retries, long deadline) {
+        this.retries = retries;
+        this.deadline = deadline;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * @return the given timeout limited to the time left until the deadline
+     */
+    long limit(long timeoutMs) {
+        if (deadline == Long.MAX_VALUE) {
+            return timeoutMs;
+        }
+        return Math.max(0, Math.min(timeoutMs, deadline - System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the output of the command or null if it failed
+     */
+    String execute(IDevice device, String cmd, Kind kind) {
+        StringShellOutputReceiver rcv = new StringShellOutputReceiver();
+        try {
+            execute(device, cmd, kind, rcv);
+            return rcv.getResult();
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Runs the command, throws the error of the last attempt if all attempts failed. A command is only retried if
+     * the receiver didn't get any output yet or if it is a {@link StringShellOutputReceiver} (which gets reset).
+     */
+    void execute(IDevice device, String cmd, Kind kind, IShellOutputReceiver receiver)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        boolean restartable = receiver instanceof StringShellOutputReceiver;
+        int attempt = 0;
+        while (true) {
+            long timeoutMs = limit(kind.timeoutMs);
+            if (timeoutMs <= 0) {
+                throw new TimeoutException("Deadline exceeded before running " + cmd);
+            }
+            if (restartable) {
+                ((StringShellOutputReceiver) receiver).reset();
+            }
+
+            DeadlineReceiver deadlineReceiver = new DeadlineReceiver(receiver, System.currentTimeMillis() + timeoutMs);
+            Exception failure;
+            boolean retryable;
+            try {
+                device.executeShellCommand(cmd, deadlineReceiver, timeoutMs, TimeUnit.MILLISECONDS);
+                if (!deadlineReceiver.expired) {
+                    return;
+                }
+                failure = new TimeoutException(cmd + " didn't finish within " + timeoutMs + "ms");
+                retryable = kind.repeatable;
+            } catch (AdbCommandRejectedException e) {
+                // the command didn't run
+                failure = e;
+                retryable = true;
+            } catch (TimeoutException | ShellCommandUnresponsiveException | IOException e) {
+                failure = e;
+                retryable = kind.repeatable;
+            }
+
+            retryable &= restartable || !deadlineReceiver.receivedOutput;
+            if (!retryable || attempt >= retries || !backoff(attempt)) {
+                throwFailure(failure);
+            }
+            attempt++;
+        }
+    }
+
+    /**
+     * Sleeps before the next attempt
+     *
+     * @return false if there is no time left for another attempt
+     */
+    private boolean backoff(int attempt) {
+        long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (limit(delay + 1) <= delay) {
+            return false;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void throwFailure(Exception failure)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        if (failure instanceof TimeoutException) {
+            throw (TimeoutException) failure;
+        } else if (failure instanceof AdbCommandRejectedException) {
+            throw (AdbCommandRejectedException) failure;
+        } else if (failure instanceof ShellCommandUnresponsiveException) {
+            throw (ShellCommandUnresponsiveException) failure;
+        }
+        throw (IOException) failure;
+    }
+
+    /**
+     * Cancels the command once the deadline passed
+     */
+    private static class DeadlineReceiver implements IShellOutputReceiver {
+        private final IShellOutputReceiver delegate;
+        private final long deadline;
+        volatile boolean receivedOutput;
+        volatile boolean expired;
+
+        DeadlineReceiver(IShellOutputReceiver delegate, long deadline) {
+            this.delegate = delegate;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (length > 0) {
+                receivedOutput = true;
+            }
+            delegate.addOutput(data, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            delegate.flush();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            if (delegate.isCancelled()) {
+                return true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                expired = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
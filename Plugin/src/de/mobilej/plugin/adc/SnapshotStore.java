@@ -0,0 +1,255 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named snapshots of the data directory of an app.
+ *
+ * File contents are kept in a content addressed store (objects/&lt;first two chars of SHA-256&gt;/&lt;SHA-256&gt;),
+ * a snapshot only lists hash, mode, mtime, size and path of every file. So identical files are only stored once,
+ * no matter how many snapshots or devices they belong to.
+ */
+class SnapshotStore {
+
+    /**
+     * Not worth keeping - the app recreates these
+     */
+    private static final String[] EXCLUDED = {"cache/", "code_cache/"};
+
+    private static final String SUFFIX = ".snapshot";
+
+    /**
+     * Deletes everything in the data directory except the lib link
+     */
+    private static final String WIPE_SCRIPT = "for f in * .*; do case \"$f\" in .|..|lib) ;; *) rm -rf \"$f\" ;; esac; done";
+
+    /**
+     * Result of capturing a snapshot
+     */
+    static class Result {
+        int files;
+        int newObjects;
+    }
+
+    private static class Entry {
+        final String hash;
+        final int mode;
+        final long mtime;
+        final long size;
+        final String path;
+
+        Entry(String hash, int mode, long mtime, long size, String path) {
+            this.hash = hash;
+            this.mode = mode;
+            this.mtime = mtime;
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    private final File objectsDir;
+    private final File snapshotsDir;
+
+    SnapshotStore(File root) {
+        this.objectsDir = new File(root, "objects");
+        this.snapshotsDir = new File(root, "snapshots");
+    }
+
+    static File getDefaultRoot() {
+        return new File(System.getProperty("user.home"), ".adc" + File.separator + "snapshots");
+    }
+
+    List<String> list(String appId) {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(snapshotsDir, appId).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    names.add(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    Result capture(IDevice device, String appId, String name) throws IOException {
+        AppSandbox sandbox = new AppSandbox(device, appId);
+        AppSandbox.Listing listing = sandbox.list(".");
+
+        List<String> paths = new ArrayList<>();
+        for (String path : listing.files.keySet()) {
+            if (!isExcluded(path)) {
+                paths.add(path);
+            }
+        }
+
+        objectsDir.mkdirs();
+        Result result = new Result();
+        List<Entry> entries = new ArrayList<>();
+        sandbox.pull(paths, (path, mode, size, mtime, content) -> {
+            File tmp = File.createTempFile("adc", ".tmp", objectsDir);
+            String hash;
+            try (DigestInputStream in = new DigestInputStream(content, sha256()); OutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[16 * 1024];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, len);
+                }
+                hash = toHex(in.getMessageDigest().digest());
+            }
+
+            File object = getObject(hash);
+            if (object.exists()) {
+                tmp.delete();
+            } else {
+                object.getParentFile().mkdirs();
+                Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                result.newObjects++;
+            }
+            entries.add(new Entry(hash, mode & 07777, mtime, size, path));
+        });
+        result.files = entries.size();
+
+        File snapshot = getSnapshot(appId, name);
+        snapshot.getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(snapshot))) {
+            for (Entry entry : entries) {
+                writer.println(entry.hash + " " + Integer.toOctalString(entry.mode) + " " + entry.mtime + " " + entry.size + " " + entry.path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the app, replaces everything in its data directory (except the lib link) with the content of the
+     * snapshot and restores the permissions of every file. The data directory is only cleared once the snapshot
+     * has been copied to the device. If extracting the snapshot fails the data directory is left empty.
+     */
+    void restore(IDevice device, String appId, String name) throws IOException {
+        List<Entry> entries = load(getSnapshot(appId, name));
+        AppSandbox sandbox = new AppSandbox(device, appId);
+
+        File localTar = File.createTempFile("adc_snapshot", ".tar");
+        try {
+            try (OutputStream out = new FileOutputStream(localTar)) {
+                Tar.Writer writer = new Tar.Writer(out);
+                for (Entry entry : entries) {
+                    try (InputStream in = new FileInputStream(getObject(entry.hash))) {
+                        writer.addFile(entry.path, entry.mode, entry.mtime, entry.size, in);
+                    }
+                }
+                writer.finish();
+            }
+
+            // only touch the current data once the snapshot is on the device
+            sandbox.upload(localTar);
+            if (ShellExecutor.DEFAULT.execute(device, "am force-stop " + appId, ShellExecutor.Kind.SHORT) == null) {
+                sandbox.discardUpload();
+                throw new IOException("Stopping " + appId + " failed");
+            }
+            sandbox.runScript(WIPE_SCRIPT);
+            try {
+                sandbox.extractUpload();
+            } catch (IOException e) {
+                // don't leave a half restored data directory behind, the app starts as freshly installed instead
+                sandbox.runScript(WIPE_SCRIPT);
+                throw new IOException(e.getMessage() + " - the data of " + appId + " was cleared", e);
+            }
+        } finally {
+            localTar.delete();
+        }
+
+        Map<Integer, List<String>> pathsByMode = new HashMap<>();
+        for (Entry entry : entries) {
+            pathsByMode.computeIfAbsent(entry.mode, mode -> new ArrayList<>()).add(entry.path);
+        }
+        for (Map.Entry<Integer, List<String>> modeAndPaths : pathsByMode.entrySet()) {
+            sandbox.chmod(modeAndPaths.getKey(), modeAndPaths.getValue());
+        }
+    }
+
+    private static boolean isExcluded(String path) {
+        for (String excluded : EXCLUDED) {
+            if (path.startsWith(excluded)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Entry> load(File snapshot) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(snapshot))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 5);
+                if (parts.length != 5) {
+                    throw new IOException("Broken snapshot " + snapshot);
+                }
+                entries.add(new Entry(parts[0], Integer.parseInt(parts[1], 8), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Broken snapshot " + snapshot, e);
+        }
+        return entries;
+    }
+
+    private File getSnapshot(String appId, String name) {
+        return new File(new File(snapshotsDir, appId), ToolWindowFactory.toFileName(name) + SUFFIX);
+    }
+
+    private File getObject(String hash) {
+        return new File(new File(objectsDir, hash.substring(0, 2)), hash);
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -31,6 +31,13 @@ public class Storage implements PersistentStateComponent<Storage> {
 
     private String lastSentText = "";
     private String installedOnDevices;
+    private String mirrorDir = "";
+    private boolean waitForIdle = true;
+    private boolean useAdcKeyboard = false;
+    private boolean useAccessibilityLookup = false;
+    private int shellRetries = ShellExecutor.DEFAULT_RETRIES;
+    private int scriptTimeoutSeconds = 120;
+    private boolean prewarmDevices = true;
 
     @Nullable
     @Override
@@ -58,4 +65,60 @@ public class Storage implements PersistentStateComponent<Storage> {
     public void setInstalledOnDevices(String installedOnDevices) {
         this.installedOnDevices = installedOnDevices;
     }
+
+    public String getMirrorDir() {
+        return mirrorDir;
+    }
+
+    public void setMirrorDir(String mirrorDir) {
+        this.mirrorDir = mirrorDir;
+    }
+
+    public boolean isWaitForIdle() {
+        return waitForIdle;
+    }
+
+    public void setWaitForIdle(boolean waitForIdle) {
+        this.waitForIdle = waitForIdle;
+    }
+
+    public boolean isUseAdcKeyboard() {
+        return useAdcKeyboard;
+    }
+
+    public void setUseAdcKeyboard(boolean useAdcKeyboard) {
+        this.useAdcKeyboard = useAdcKeyboard;
+    }
+
+    public boolean isUseAccessibilityLookup() {
+        return useAccessibilityLookup;
+    }
+
+    public void setUseAccessibilityLookup(boolean useAccessibilityLookup) {
+        this.useAccessibilityLookup = useAccessibilityLookup;
+    }
+
+    public int getShellRetries() {
+        return shellRetries;
+    }
+
+    public void setShellRetries(int shellRetries) {
+        this.shellRetries = shellRetries;
+    }
+
+    public int getScriptTimeoutSeconds() {
+        return scriptTimeoutSeconds;
+    }
+
+    public void setScriptTimeoutSeconds(int scriptTimeoutSeconds) {
+        this.scriptTimeoutSeconds = scriptTimeoutSeconds;
+    }
+
+    public boolean isPrewarmDevices() {
+        return prewarmDevices;
+    }
+
+    public void setPrewarmDevices(boolean prewarmDevices) {
+        this.prewarmDevices = prewarmDevices;
+    }
 }
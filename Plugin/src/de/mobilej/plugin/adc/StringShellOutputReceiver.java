@@ -0,0 +1,51 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Collects the output of a shell command into a String
+ */
+class StringShellOutputReceiver implements IShellOutputReceiver {
+    private StringBuffer result = new StringBuffer();
+
+    void reset() {
+        result.delete(0, result.length());
+    }
+
+    String getResult() {
+        return result.toString();
+    }
+
+    @Override
+    public void addOutput(byte[] bytes, int i, int i1) {
+        try {
+            result.append(new String(bytes, i, i1, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Flushable;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal reader for the tar streams created by the tar implementations found on Android devices
+ * (ustar with GNU long names or pax headers) and a writer for plain ustar streams with GNU long names.
+ */
+class Tar {
+
+    interface EntryHandler {
+        /**
+         * Called for every regular file. The handler has to consume exactly size bytes of the stream.
+         */
+        void file(String name, int mode, long size, long mtime, InputStream content) throws IOException;
+    }
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+
+    private Tar() {
+    }
+
+    static void read(InputStream in, EntryHandler handler) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        String longName = null;
+
+        while (true) {
+            readFully(in, header, BLOCK_SIZE);
+            if (isZeroBlock(header)) {
+                return;
+            }
+
+            String name = longName != null ? longName : getName(header);
+            longName = null;
+            long size = parseNumber(header, 124, 12);
+            long mtime = parseNumber(header, 136, 12);
+            char type = (char) header[156];
+
+            switch (type) {
+                case 'L':
+                    longName = trimNul(new String(readBytes(in, size), StandardCharsets.UTF_8));
+                    break;
+                case 'x':
+                    longName = parsePaxPath(new String(readBytes(in, size), StandardCharsets.UTF_8));
+                    break;
+                case '0':
+                case '\0':
+                    BoundedInputStream content = new BoundedInputStream(in, size);
+                    handler.file(name, (int) parseNumber(header, 100, 8), size, mtime, content);
+                    content.skipRemaining();
+                    break;
+                default:
+                    skip(in, size);
+                    break;
+            }
+            skip(in, padding(size));
+        }
+    }
+
+    /**
+     * Extracts the file into the given directory, the name is relative to the directory.
+     */
+    static void extractTo(File dir, String name, long mtime, InputStream content) throws IOException {
+        File target = new File(dir, name);
+        if (!target.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Illegal entry " + name);
+        }
+        target.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[16 * 1024];
+            int len;
+            while ((len = content.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+        }
+        target.setLastModified(mtime * 1000);
+    }
+
+    private static String getName(byte[] header) {
+        String name = trimNul(new String(header, 0, NAME_LENGTH, StandardCharsets.UTF_8));
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            String prefix = trimNul(new String(header, 345, 155, StandardCharsets.UTF_8));
+            if (prefix.length() > 0) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String parsePaxPath(String records) {
+        // records look like "<length> <key>=<value>\n"
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if (space > 0 && record.startsWith("path=", space + 1)) {
+                return record.substring(space + 6);
+            }
+        }
+        return null;
+    }
+
+    private static long parseNumber(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            // base-256 encoding for large values
+            long value = header[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            } else if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String trimNul(String s) {
+        int idx = s.indexOf('\0');
+        return idx >= 0 ? s.substring(0, idx) : s;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long padding(long size) {
+        long rest = size % BLOCK_SIZE;
+        return rest == 0 ? 0 : BLOCK_SIZE - rest;
+    }
+
+    private static byte[] readBytes(InputStream in, long size) throws IOException {
+        byte[] bytes = new byte[(int) size];
+        readFully(in, bytes, bytes.length);
+        return bytes;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int len = in.read(buffer, read, length - read);
+            if (len < 0) {
+                throw new EOFException("Unexpected end of tar stream");
+            }
+            read += len;
+        }
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        while (count > 0) {
+            int len = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (len < 0) {
+                throw new EOFException("Unexpected end of tar stream");
+            }
+            count -= len;
+        }
+    }
+
+    /**
+     * Writes regular files into a tar stream
+     */
+    static class Writer implements Flushable {
+        private final OutputStream out;
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void addFile(String name, int mode, long mtime, long size, InputStream content) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > NAME_LENGTH) {
+                writeHeader("././@LongLink".getBytes(StandardCharsets.UTF_8), 0, 0, nameBytes.length + 1, 'L');
+                out.write(nameBytes);
+                out.write(0);
+                writePadding(nameBytes.length + 1);
+            }
+            writeHeader(nameBytes, mode, mtime, size, '0');
+
+            byte[] buffer = new byte[16 * 1024];
+            long remaining = size;
+            while (remaining > 0) {
+                int len = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len < 0) {
+                    throw new EOFException("Content of " + name + " is shorter than " + size + " bytes");
+                }
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+            writePadding(size);
+        }
+
+        /**
+         * Writes the end of archive marker
+         */
+        void finish() throws IOException {
+            out.write(new byte[BLOCK_SIZE * 2]);
+            out.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void writeHeader(byte[] name, int mode, long mtime, long size, char type) throws IOException {
+            byte[] header = new byte[BLOCK_SIZE];
+            System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+            putOctal(header, 100, 8, mode);
+            putOctal(header, 108, 8, 0);
+            putOctal(header, 116, 8, 0);
+            putOctal(header, 124, 12, size);
+            putOctal(header, 136, 12, mtime);
+            for (int i = 148; i < 156; i++) {
+                header[i] = ' ';
+            }
+            header[156] = (byte) type;
+            System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+            header[263] = '0';
+            header[264] = '0';
+
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            putOctal(header, 148, 7, checksum);
+            header[155] = ' ';
+            out.write(header);
+        }
+
+        private void writePadding(long size) throws IOException {
+            long padding = padding(size);
+            if (padding > 0) {
+                out.write(new byte[(int) padding]);
+            }
+        }
+
+        private static void putOctal(byte[] header, int offset, int length, long value) {
+            String octal = Long.toOctalString(value);
+            int digits = length - 1;
+            while (octal.length() < digits) {
+                octal = "0" + octal;
+            }
+            byte[] bytes = octal.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, header, offset, digits);
+            header[offset + digits] = 0;
+        }
+    }
+
+    /**
+     * Limits the stream of an entry to its size.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        void skipRemaining() throws IOException {
+            Tar.skip(in, remaining);
+            remaining = 0;
+        }
+    }
+}
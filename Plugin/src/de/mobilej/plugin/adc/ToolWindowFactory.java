@@ -19,10 +19,14 @@ import com.intellij.facet.ProjectFacetManager;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.OpenFileDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -37,10 +41,6 @@ import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.facet.AndroidFacetConfiguration;
 import org.jetbrains.android.sdk.AndroidSdkUtils;
 import org.jetbrains.annotations.NotNull;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
-import org.xmlpull.v1.util.XmlPullUtil;
 
 import javax.swing.*;
 import java.awt.*;
@@ -49,8 +49,6 @@ import java.io.*;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.regex.Pattern;
 
 /**
  * Android Device Controller Plugin for Android Studio
@@ -84,68 +82,36 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
     }
 
     private ComboBox devices;
-    private AndroidDebugBridge adBridge;
     private JButton inputOnDeviceButton;
+    private JButton inputOnAllDevicesButton;
     private JButton clearDataButton;
     private JButton killProcessButton;
-
-
-    private static class StringShellOutputReceiver implements IShellOutputReceiver {
-        private StringBuffer result = new StringBuffer();
-
-        void reset() {
-            result.delete(0, result.length());
-        }
-
-        String getResult() {
-            return result.toString();
-        }
-
-        @Override
-        public void addOutput(byte[] bytes, int i, int i1) {
-            try {
-                result.append(new String(bytes, i, i1, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-        }
-
-        @Override
-        public void flush() {
-        }
-
-        @Override
-        public boolean isCancelled() {
-            return false;
-        }
-    }
-
-    private StringShellOutputReceiver rcv = new StringShellOutputReceiver();
-
-    private AndroidDebugBridge.IDeviceChangeListener deviceChangeListener = new AndroidDebugBridge.IDeviceChangeListener() {
-        @Override
-        public void deviceConnected(IDevice iDevice) {
-            updateDeviceComboBox();
-        }
-
-        @Override
-        public void deviceDisconnected(IDevice iDevice) {
-            updateDeviceComboBox();
-        }
-
-        @Override
-        public void deviceChanged(IDevice iDevice, int i) {
-        }
-    };
+    private JButton localeSweepButton;
+    private JButton mirrorAppDataButton;
+    private JButton saveSnapshotButton;
+    private JButton restoreSnapshotButton;
+    private JBCheckBox livePreview;
+    private JBCheckBox recordSession;
+    private JButton replaySessionButton;
+    private volatile SessionRecorder sessionRecorder;
+    private ScreenPreviewPanel screenPreview;
+    private JBCheckBox inspectViews;
+    private ViewInspector viewInspector;
+    private ScreenCapture screenCapture;
+
+    private final DeviceService deviceService = DeviceService.getInstance();
+    private final DeviceModel deviceModel = new DeviceModel(deviceService, resourceBundle.getString("device.none"));
 
     private ActionListener deviceSelectedListener = e -> updateFromDevice();
 
-    private JBCheckBox showLayoutBounds;
+    private final Map<DeveloperToggle, JBCheckBox> toggleCheckBoxes = new LinkedHashMap<>();
+    private ComboBox profileChooser;
     private ComboBox localeChooser;
     private boolean userAction = false;
     private JButton goToActivityButton;
 
     private final Storage storage = ServiceManager.getService(Storage.class);
+    private final SnapshotStore snapshotStore = new SnapshotStore(SnapshotStore.getDefaultRoot());
 
     public ToolWindowFactory() {
     }
@@ -160,12 +126,31 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         if (adb == null) {
             return;
         }
+        deviceModel.connect();
+
+        DeviceService.Subscriber subscriber = new DeviceService.Subscriber() {
+            @Override
+            public void deviceUpdated(String serial) {
+                if (!deviceModel.isSelected(serial)) {
+                    return;
+                }
+                deviceModel.selectedDeviceUpdated();
+                if (getSelectedDevice() != null) {
+                    enableAll();
+                } else {
+                    disableAll();
+                }
+            }
+
+            @Override
+            public List<String> getAppIds() {
+                return ApplicationManager.getApplication().runReadAction((Computable<List<String>>) () -> ToolWindowFactory.getAppIds(project));
+            }
+        };
 
         if(adb.isConnected()){
-            ToolWindowFactory.this.adBridge = adb;
             Logger.getInstance(ToolWindowFactory.class).info("Successfully obtained debug bridge");
-            AndroidDebugBridge.addDeviceChangeListener(deviceChangeListener);
-            updateDeviceComboBox();
+            deviceService.subscribe(adb, subscriber);
         } else {
             Logger.getInstance(ToolWindowFactory.class).info("Unable to obtain debug bridge");
             String msg = MessageFormat.format(resourceBundle.getString("error.message.adb"), "");
@@ -173,6 +158,17 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         }
 
         Content content = contentFactory.createContent(framePanel, "", false);
+        content.setDisposer(() -> {
+            deviceService.unsubscribe(subscriber);
+            deviceModel.dispose();
+            if (screenCapture != null) {
+                screenCapture.stop();
+                screenCapture = null;
+            }
+            stopRecording();
+            viewInspector.dispose();
+            ApplicationManager.getApplication().executeOnPooledThread(AccessibilityViewLookup::restoreAll);
+        });
         toolWindow.getContentManager().addContent(content);
     }
 
@@ -185,7 +181,9 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         c.anchor = GridBagConstraints.LINE_START;
         c.insets = new Insets(6,0,0,0);
 
-        devices = new ComboBox(new String[]{resourceBundle.getString("device.none")});
+        devices = new ComboBox(deviceModel);
+        devices.setRenderer(deviceModel.createRenderer());
+        devices.addActionListener(deviceSelectedListener);
 
         c.gridx = 0;
         c.gridy = 0;
@@ -195,23 +193,33 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         panel.add(devices, c);
 
 
-        showLayoutBounds = new JBCheckBox(resourceBundle.getString("show.layout.bounds"));
+        JPanel togglePanel = new JPanel(new GridLayout(0, 1));
+        for (DeveloperToggle toggle : DeveloperToggle.ALL) {
+            JBCheckBox checkBox = new JBCheckBox(resourceBundle.getString(toggle.labelKey));
+            togglePanel.add(checkBox);
+            toggleCheckBoxes.put(toggle, checkBox);
+            checkBox.addActionListener(e -> applyToggles(Collections.singletonMap(toggle, checkBox.isSelected())));
+        }
+
+        profileChooser = new ComboBox();
+        profileChooser.addItem(resourceBundle.getString("profile.choose"));
+        for (DeveloperToggle.Profile profile : DeveloperToggle.PROFILES) {
+            profileChooser.addItem(resourceBundle.getString(profile.labelKey));
+        }
+        togglePanel.add(profileChooser);
+        profileChooser.addActionListener(e -> {
+            int index = profileChooser.getSelectedIndex();
+            if (index > 0) {
+                DeveloperToggle.Profile profile = DeveloperToggle.PROFILES.get(index - 1);
+                profileChooser.setSelectedIndex(0);
+                applyToggles(profile.states);
+            }
+        });
+
         c.gridx = 0;
         c.gridy = 1;
         c.gridwidth = 2;
-        panel.add(showLayoutBounds, c);
-
-        showLayoutBounds.addActionListener(e -> {
-            final String what = showLayoutBounds.isSelected() ? "true" : "\"\"";
-            final String cmd = "setprop debug.layout " + what;
-
-            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
-                ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
-                userAction = true;
-                executeShellCommand(cmd, true);
-                userAction = false;
-            }, resourceBundle.getString("setting.values.title"), false, null);
-        });
+        panel.add(togglePanel, c);
 
 
         localeChooser = new ComboBox(LOCALES);
@@ -229,7 +237,10 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
             ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
                 ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
                 userAction = true;
-                executeShellCommand("am start -a SETMYLOCALE --es language " + ld.language + " --es country " + ld.county, false);
+                DeviceController controller = getController();
+                if (controller != null) {
+                    controller.setLocale(ld.language, ld.county);
+                }
                 userAction = false;
             }, resourceBundle.getString("setting.values.title"), false, null);
         });
@@ -245,7 +256,8 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         goToActivityButton.addActionListener(e -> ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
             ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
             userAction = true;
-            final String result = executeShellCommand("dumpsys activity top", false);
+            DeviceController controller = getController();
+            final String result = controller != null ? controller.getTopActivity() : null;
             userAction = false;
 
             if (result == null) {
@@ -254,8 +266,7 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
 
             ApplicationManager.getApplication().invokeLater(() -> {
 
-                String activity = result.substring(result.lastIndexOf("ACTIVITY ") + 9);
-                activity = activity.substring(0, activity.indexOf(" "));
+                String activity = result.substring(0, result.indexOf(" "));
                 String pkg = activity.substring(0, activity.indexOf("/"));
                 String clz = activity.substring(activity.indexOf("/") + 1);
                 if (clz.startsWith(".")) {
@@ -284,7 +295,7 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         inputOnDeviceButton = new JButton(resourceBundle.getString("button.input_on_device"));
         c.gridx = 0;
         c.gridy = 4;
-        c.gridwidth = 2;
+        c.gridwidth = 1;
         c.fill = GridBagConstraints.HORIZONTAL;
         panel.add(inputOnDeviceButton, c);
 
@@ -297,12 +308,72 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
                 ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
                     ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
                     userAction = true;
-                    doInputOnDevice(text2send);
+                    DeviceController controller = getController();
+                    boolean completed = controller == null || controller.runScript(text2send, getAppIds(project), (step, durationMs, success) -> {
+                        if (!success) {
+                            Logger.getInstance(ToolWindowFactory.class).info("Input step failed: " + step);
+                        }
+                    });
                     userAction = false;
+                    if (!completed) {
+                        SwingUtilities.invokeLater(() -> Messages.showWarningDialog(
+                                MessageFormat.format(resourceBundle.getString("send_text.deadline"), storage.getScriptTimeoutSeconds()),
+                                resourceBundle.getString("send_text.title")));
+                    }
                 }, resourceBundle.getString("processing.title"), false, null);
             }
         });
 
+        inputOnAllDevicesButton = new JButton(resourceBundle.getString("button.input_on_all_devices"));
+        c.gridx = 1;
+        c.gridy = 4;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(inputOnAllDevicesButton, c);
+
+        inputOnAllDevicesButton.addActionListener(e -> {
+            final String text2send = Messages.showMultilineInputDialog(project, resourceBundle.getString("send_text.message"), resourceBundle.getString("lockstep.title"), storage.getLastSentText(), Messages.getQuestionIcon(), null);
+
+            if (text2send != null) {
+                storage.setLastSentText(text2send);
+
+                final StringBuilder summary = new StringBuilder();
+                ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                    ProgressIndicator progressIndicator = ProgressManager.getInstance().getProgressIndicator();
+                    progressIndicator.setIndeterminate(true);
+                    List<DeviceController> controllers = new ArrayList<>();
+                    for (IDevice device : deviceService.getOnlineDevices()) {
+                        setupDevice(device);
+                        controllers.add(new DeviceController(device, deviceService.getControllerOptions()));
+                    }
+                    if (controllers.isEmpty()) {
+                        return;
+                    }
+
+                    List<Lockstep.StepReport> reports = Collections.synchronizedList(new ArrayList<>());
+                    boolean completed = Lockstep.run(controllers, text2send, getAppIds(project), report -> {
+                        reports.add(report);
+                        progressIndicator.setText(report.step);
+                    });
+                    for (Lockstep.StepReport report : reports) {
+                        summary.append(MessageFormat.format(resourceBundle.getString("lockstep.step"), report.index + 1,
+                                report.step, report.getSkewMs(), report.getSlowest(), report.durationsMs.get(report.getSlowest())));
+                        if (!report.failed.isEmpty()) {
+                            summary.append(MessageFormat.format(resourceBundle.getString("lockstep.failed"), String.join(", ", report.failed)));
+                        }
+                        summary.append('\n');
+                    }
+                    if (!completed) {
+                        summary.append(MessageFormat.format(resourceBundle.getString("send_text.deadline"), storage.getScriptTimeoutSeconds()));
+                    }
+                }, resourceBundle.getString("lockstep.title"), false, project);
+
+                if (summary.length() > 0) {
+                    Messages.showInfoMessage(project, summary.toString(), resourceBundle.getString("lockstep.title"));
+                }
+            }
+        });
+
         clearDataButton = new JButton(resourceBundle.getString("button.clear_data"));
         c.gridx = 0;
         c.gridy = 5;
@@ -310,23 +381,14 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         c.fill = GridBagConstraints.HORIZONTAL;
         panel.add(clearDataButton, c);
         clearDataButton.addActionListener(actionEvent -> {
-            ArrayList<String> appIds = new ArrayList<String>();
-            List<AndroidFacet> androidFacets = ProjectFacetManager.getInstance(project).getFacets(AndroidFacet.ID);
-            if (androidFacets != null) {
-                for (AndroidFacet facet : androidFacets) {
-                    AndroidFacetConfiguration facetConfig = facet.getConfiguration();
-                    if (!facetConfig.isLibraryProject()) {
-                        String appId = facetConfig.getModel().getApplicationId();
-                        appIds.add(appId);
-                    }
-                }
-            }
+            List<String> appIds = getAppIds(project);
 
             ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
                 ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
                 userAction = true;
-                for (String appId : appIds) {
-                    executeShellCommand("pm clear " + appId, false);
+                DeviceController controller = getController();
+                if (controller != null) {
+                    controller.clearData(appIds);
                 }
                 userAction = false;
             }, resourceBundle.getString("processing.title"), false, null);
@@ -339,259 +401,332 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         c.fill = GridBagConstraints.HORIZONTAL;
         panel.add(killProcessButton, c);
         killProcessButton.addActionListener(actionEvent -> {
-            ArrayList<String> appIds = new ArrayList<String>();
-            List<AndroidFacet> androidFacets = ProjectFacetManager.getInstance(project).getFacets(AndroidFacet.ID);
-            if (androidFacets != null) {
-                for (AndroidFacet facet : androidFacets) {
-                    AndroidFacetConfiguration facetConfig = facet.getConfiguration();
-                    if (!facetConfig.isLibraryProject()) {
-                        AndroidModel androidModel = facetConfig.getModel();
-                        if (androidModel != null) {
-                            String appId = androidModel.getApplicationId();
-                            appIds.add(appId);
-                        }
-                    }
-                }
-            }
+            List<String> appIds = getAppIds(project);
 
             ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
                 ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
                 userAction = true;
-                for (String appId : appIds) {
-                    String res = executeShellCommand("run-as "+appId+" ps -A", false);
-                    if(res!=null) {
-                        LineNumberReader lnr = new LineNumberReader(new StringReader(res));
-                        try {
-                            String pid = null;
-                            String line = lnr.readLine();
-                            while(line!=null){
-                                line = lnr.readLine();
-                                if(line!=null){
-                                    if(line.contains(appId)){
-                                        StringTokenizer toker = new StringTokenizer(line, " \t");
-                                        if(toker.hasMoreTokens()){
-                                            toker.nextToken();
-                                            if(toker.hasMoreTokens()) {
-                                                pid = toker.nextToken();
-                                                break;
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-
-                            if(pid!=null){
-                                res = executeShellCommand("run-as "+appId+" kill "+pid, false);
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                DeviceController controller = getController();
+                if (controller != null) {
+                    controller.killProcesses(appIds);
                 }
                 userAction = false;
             }, resourceBundle.getString("processing.title"), false, null);
         });
 
-        JPanel framePanel = new JPanel(new BorderLayout());
-        framePanel.add(panel, BorderLayout.NORTH);
-        return framePanel;
-    }
+        localeSweepButton = new JButton(resourceBundle.getString("button.locale_sweep"));
+        c.gridx = 0;
+        c.gridy = 7;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(localeSweepButton, c);
+        localeSweepButton.addActionListener(actionEvent -> {
+            VirtualFile outputDir = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor(), project, null);
+            if (outputDir == null) {
+                return;
+            }
 
-    private void doInputOnDevice(String text2send) {
-        /*
-        Syntax:
-        `tap 130 150` -> sends "input tap 130 150" .... really just "input " and append the command
-        `tap @my.package:id/text` -> first find the center of the given res-id (uiautomator dump /dev/tty)
-        `tap @*:id/text` -> support wildcards
-        `swipe 10 20 30 40` -> simple swipe (px)
-        `swipe @*:id/my_id[10,20] @*:id/my_id[50,60]` -> swipe from 10% of x of given view, 20% of y of given view to 50% of x of the view to 60% of y of the view
-        `tap @*:id/button[20,30]` syntax also works in general for @id things
-        ``` -> escapes `
-        `
-        ` -> new line which is not sent
-        `#500` -> wait 500 milliseconds
-        */
-
-        text2send = text2send.replace("```", "\u2764");
-        text2send = text2send + "`";
-        StringTokenizer tokenizer = new StringTokenizer(text2send, "`", true);
-        boolean inCommand = false;
-        String plainText = null;
-        String commandText = null;
-        while (tokenizer.hasMoreElements()) {
-            String next = tokenizer.nextToken();
-
-            if ("`".equals(next)) {
-                if (!inCommand) {
-                    inCommand = true;
-
-                    if (plainText != null) {
-
-                        StringTokenizer tokenizer2 = new StringTokenizer(plainText," \t\r\n", true);
-                        while(tokenizer2.hasMoreElements()) {
-                            String part = tokenizer2.nextToken();
-                            String escaped = part.replace("\"", "\\\"").replace("\u2764", "\\`");
-                            executeShellCommand("input text \"" + escaped + "\"", false);
-
-                            try {
-                                Thread.sleep(400); // wait a bit - give the device some time to process
-                            } catch (InterruptedException e) {
-                                //ignored
-                            }
+            List<IDevice> onlineDevices = deviceService.getOnlineDevices();
+            if (onlineDevices.isEmpty()) {
+                return;
+            }
+
+            final LocaleSweep.Result[] result = {null};
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+                indicator.setIndeterminate(false);
+                for (IDevice device : onlineDevices) {
+                    setupDevice(device);
+                }
+
+                LocaleSweep sweep = new LocaleSweep(onlineDevices, LOCALES, new File(outputDir.getPath()));
+                try {
+                    result[0] = sweep.run(new LocaleSweep.Listener() {
+                        @Override
+                        public void progress(int done, int total, String message) {
+                            indicator.setFraction((double) done / total);
+                            indicator.setText2(message);
                         }
-                        plainText = null;
-                        commandText = null;
-                    }
-                } else {
-                    inCommand = false;
-                    if (commandText != null) {
-                        commandText = commandText.replace("\r", "").replace("\n", "");
-                        if (commandText.length() > 0) {
-                            if (commandText.startsWith("#")) {
-                                long timeToWait = Long.parseLong(commandText.substring(1));
-                                try {
-                                    Thread.sleep(timeToWait);
-                                } catch (InterruptedException e) {
-                                    // do nothing
-                                }
-                            } else {
-                                if (commandText.contains("@")) {
-                                    commandText = processViewIds(commandText);
-                                }
-
-                                executeShellCommand("input " + commandText, false);
-                            }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return indicator.isCanceled();
                         }
-                        commandText = null;
-                        plainText = null;
-                    }
+                    });
+                } catch (InterruptedException e) {
+                    // ignored
                 }
+            }, resourceBundle.getString("locale_sweep.title"), true, project);
+
+            if (result[0] == null) {
+                return;
+            }
+            String message = MessageFormat.format(resourceBundle.getString("locale_sweep.done"), result[0].written.get(), outputDir.getPath());
+            if (result[0].failed.isEmpty()) {
+                Messages.showInfoMessage(project, message, resourceBundle.getString("locale_sweep.title"));
             } else {
-                if (inCommand) {
-                    commandText = next;
-                    plainText = null;
-                } else {
-                    plainText = next;
-                    commandText = null;
+                message += "\n" + MessageFormat.format(resourceBundle.getString("locale_sweep.failed"), result[0].failed.size(), String.join("\n", result[0].failed));
+                Messages.showWarningDialog(project, message, resourceBundle.getString("locale_sweep.title"));
+            }
+        });
+
+        mirrorAppDataButton = new JButton(resourceBundle.getString("button.mirror_app_data"));
+        c.gridx = 0;
+        c.gridy = 8;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(mirrorAppDataButton, c);
+        mirrorAppDataButton.addActionListener(actionEvent -> {
+            String mirrorRoot = storage.getMirrorDir();
+            if (mirrorRoot == null || mirrorRoot.length() == 0) {
+                VirtualFile chosen = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor(), project, null);
+                if (chosen == null) {
+                    return;
                 }
+                mirrorRoot = chosen.getPath();
+                storage.setMirrorDir(mirrorRoot);
             }
-        }
 
-        try {
-            Thread.sleep(800); // wait a bit - give the device some time to process
-        } catch (InterruptedException e) {
-            //ignored
-        }
-    }
+            List<String> appIds = getAppIds(project);
+            IDevice device = getSelectedDevice();
+            if (device == null) {
+                return;
+            }
 
-    private String processViewIds(String commandText) {
-        /*
-        @<id, supporting wildcards, if no ":" contained it will prepend "*:"> defaults to center of view
-        @<id, supporting wildcards, if no ":" contained it will prepend "*:">[percentX,percentY] percentX/Y in view bounds
-         */
-        String views = executeShellCommand("uiautomator dump /dev/tty", false);
-        views = views.substring(0, views.lastIndexOf(">") + 1);
-        HashMap<String, Rectangle> resIdToBoundsMap = new HashMap<>();
-        try {
-            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
-            xpp.setInput(new StringReader(views));
-
-            int eventType;
-            while ((eventType = xpp.getEventType()) != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG) {
-                    if ("node".equals(xpp.getName())) {
-                        String bounds = XmlPullUtil.getAttributeValue(xpp, "bounds");
-                        String resId = XmlPullUtil.getAttributeValue(xpp, "resource-id");
-
-                        if (resId != null && resId.length() > 0) {
-                            bounds = bounds.replace("][", ",");
-                            bounds = bounds.replace("[", "");
-                            bounds = bounds.replace("]", "");
-                            String[] coords = bounds.split(",");
-                            int x1 = Integer.parseInt(coords[0]);
-                            int y1 = Integer.parseInt(coords[1]);
-                            int x2 = Integer.parseInt(coords[2]);
-                            int y2 = Integer.parseInt(coords[3]);
-
-                            Rectangle rect = new Rectangle(x1, y1, x2 - x1, y2 - y1);
-                            resIdToBoundsMap.put(resId, rect);
-                        }
+            final File deviceDir = new File(mirrorRoot, toFileName(device.getSerialNumber()));
+            final StringBuilder summary = new StringBuilder();
+            final StringBuilder errors = new StringBuilder();
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
+                for (String appId : appIds) {
+                    ProgressManager.getInstance().getProgressIndicator().setText2(appId);
+                    try {
+                        AppDataMirror.Result result = new AppDataMirror(device, appId, new File(deviceDir, appId)).sync();
+                        summary.append(MessageFormat.format(resourceBundle.getString("mirror_app_data.result"),
+                                appId, result.transferred, result.deleted, result.unchanged)).append('\n');
+                    } catch (IOException e) {
+                        errors.append(appId).append(": ").append(e.getMessage()).append('\n');
                     }
                 }
-                xpp.next();
+            }, resourceBundle.getString("mirror_app_data.title"), false, project);
 
+            if (errors.length() > 0) {
+                Messages.showErrorDialog(project, errors.toString(), resourceBundle.getString("mirror_app_data.title"));
+            } else {
+                Messages.showInfoMessage(project, summary.toString() + deviceDir.getPath(), resourceBundle.getString("mirror_app_data.title"));
             }
+        });
 
-        } catch (XmlPullParserException | IOException e) {
-            e.printStackTrace();
-        }
+        saveSnapshotButton = new JButton(resourceBundle.getString("button.save_snapshot"));
+        c.gridx = 0;
+        c.gridy = 9;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(saveSnapshotButton, c);
+        saveSnapshotButton.addActionListener(actionEvent -> {
+            final String name = Messages.showInputDialog(project, resourceBundle.getString("snapshot.name.message"), resourceBundle.getString("snapshot.title"), Messages.getQuestionIcon());
+            IDevice device = getSelectedDevice();
+            if (name == null || name.trim().length() == 0 || device == null) {
+                return;
+            }
 
-        while (commandText.contains("@")) {
-            int idx = commandText.indexOf("@");
-            StringBuilder sb = new StringBuilder();
-            int i = idx;
-            while (i < commandText.length() && commandText.charAt(i) > ' ') {
-                sb.append(commandText.charAt(i));
-                i++;
+            List<String> appIds = getAppIds(project);
+            final StringBuilder summary = new StringBuilder();
+            final StringBuilder errors = new StringBuilder();
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
+                for (String appId : appIds) {
+                    ProgressManager.getInstance().getProgressIndicator().setText2(appId);
+                    try {
+                        SnapshotStore.Result result = snapshotStore.capture(device, appId, name.trim());
+                        summary.append(MessageFormat.format(resourceBundle.getString("snapshot.saved"), appId, result.files, result.newObjects)).append('\n');
+                    } catch (IOException e) {
+                        errors.append(appId).append(": ").append(e.getMessage()).append('\n');
+                    }
+                }
+            }, resourceBundle.getString("snapshot.title"), false, project);
+
+            if (errors.length() > 0) {
+                Messages.showErrorDialog(project, errors.toString(), resourceBundle.getString("snapshot.title"));
+            } else {
+                Messages.showInfoMessage(project, summary.toString(), resourceBundle.getString("snapshot.title"));
             }
+        });
 
-            String calculatedCoords = "0 0";
-            String resIdToMatch = sb.substring(1);
-            double percentX = 0.5;
-            double percentY = 0.5;
+        restoreSnapshotButton = new JButton(resourceBundle.getString("button.restore_snapshot"));
+        c.gridx = 0;
+        c.gridy = 10;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(restoreSnapshotButton, c);
+        restoreSnapshotButton.addActionListener(actionEvent -> {
+            List<String> appIds = getAppIds(project);
+            TreeSet<String> names = new TreeSet<>();
+            for (String appId : appIds) {
+                names.addAll(snapshotStore.list(appId));
+            }
+            if (names.isEmpty()) {
+                Messages.showInfoMessage(project, resourceBundle.getString("snapshot.none"), resourceBundle.getString("snapshot.title"));
+                return;
+            }
 
-            if (resIdToMatch.contains("[") && resIdToMatch.contains("]")) {
-                String percentPart = resIdToMatch.substring(resIdToMatch.indexOf("[") + 1, resIdToMatch.indexOf("]"));
-                resIdToMatch = resIdToMatch.substring(0, resIdToMatch.indexOf("["));
-                String[] percentParts = percentPart.split(",");
-                try {
-                    percentX = Double.parseDouble(percentParts[0]) / 100;
-                    percentY = Double.parseDouble(percentParts[1]) / 100;
-                } catch (NumberFormatException nfe) {
-                    nfe.printStackTrace();
+            String[] choices = names.toArray(new String[names.size()]);
+            int chosen = Messages.showChooseDialog(project, resourceBundle.getString("snapshot.restore.message"), resourceBundle.getString("snapshot.title"), Messages.getQuestionIcon(), choices, choices[choices.length - 1]);
+            IDevice device = getSelectedDevice();
+            if (chosen < 0 || device == null) {
+                return;
+            }
+
+            final StringBuilder errors = new StringBuilder();
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
+                for (String appId : appIds) {
+                    if (!snapshotStore.list(appId).contains(choices[chosen])) {
+                        continue;
+                    }
+                    ProgressManager.getInstance().getProgressIndicator().setText2(appId);
+                    try {
+                        snapshotStore.restore(device, appId, choices[chosen]);
+                    } catch (IOException e) {
+                        errors.append(appId).append(": ").append(e.getMessage()).append('\n');
+                    }
                 }
+            }, resourceBundle.getString("snapshot.title"), false, project);
+
+            if (errors.length() > 0) {
+                Messages.showErrorDialog(project, errors.toString(), resourceBundle.getString("snapshot.title"));
             }
+        });
 
-            Rectangle rect = new Rectangle(0, 0, 0, 0);
-            if (resIdToBoundsMap.containsKey(resIdToMatch)) {
-                rect = resIdToBoundsMap.get(resIdToMatch);
-            } else {
-                if (!resIdToMatch.contains(":")) {
-                    resIdToMatch = "*:" + resIdToMatch;
+        livePreview = new JBCheckBox(resourceBundle.getString("live.preview"));
+        c.gridx = 0;
+        c.gridy = 11;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.NONE;
+        panel.add(livePreview, c);
+        livePreview.addActionListener(e -> updateScreenCapture());
+
+        inspectViews = new JBCheckBox(resourceBundle.getString("inspect.views"));
+        c.gridx = 1;
+        c.gridy = 11;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.NONE;
+        panel.add(inspectViews, c);
+        inspectViews.addActionListener(e -> updateScreenCapture());
+
+        recordSession = new JBCheckBox(resourceBundle.getString("record_session"));
+        c.gridx = 0;
+        c.gridy = 12;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.NONE;
+        panel.add(recordSession, c);
+        recordSession.addActionListener(e -> {
+            if (!recordSession.isSelected()) {
+                File file = stopRecording();
+                if (file != null) {
+                    Messages.showInfoMessage(project, MessageFormat.format(resourceBundle.getString("session.saved"), file.getPath()), resourceBundle.getString("session.title"));
                 }
+                return;
+            }
 
-                for (Map.Entry<String, Rectangle> entry : resIdToBoundsMap.entrySet()) {
-                    if (wildcardMatch(resIdToMatch, entry.getKey())) {
-                        rect = entry.getValue();
-                        break;
-                    }
+            IDevice device = getSelectedDevice();
+            if (device == null) {
+                recordSession.setSelected(false);
+                return;
+            }
+            try {
+                sessionRecorder = new SessionRecorder(SessionRecorder.newSessionFile(device.getSerialNumber()), device.getSerialNumber());
+            } catch (IOException ioe) {
+                recordSession.setSelected(false);
+                Messages.showErrorDialog(project, ioe.getMessage(), resourceBundle.getString("session.title"));
+            }
+        });
+
+        replaySessionButton = new JButton(resourceBundle.getString("button.replay_session"));
+        c.gridx = 1;
+        c.gridy = 12;
+        c.gridwidth = 1;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(replaySessionButton, c);
+        replaySessionButton.addActionListener(e -> {
+            VirtualFile chosen = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFileNoJarsDescriptor(), project, null);
+            if (chosen == null) {
+                return;
+            }
+            final SessionLog.Session session;
+            try {
+                session = SessionLog.read(new File(chosen.getPath()));
+            } catch (IOException ioe) {
+                Messages.showErrorDialog(project, ioe.getMessage(), resourceBundle.getString("session.title"));
+                return;
+            }
+
+            String[] modes = {
+                    resourceBundle.getString("session.replay.paced"),
+                    resourceBundle.getString("session.replay.fast"),
+                    resourceBundle.getString("session.replay.paced_all"),
+                    resourceBundle.getString("session.replay.fast_all")};
+            int mode = Messages.showChooseDialog(project, MessageFormat.format(resourceBundle.getString("session.replay.message"), session.records.size(), session.serial),
+                    resourceBundle.getString("session.title"), Messages.getQuestionIcon(), modes, modes[0]);
+            if (mode < 0) {
+                return;
+            }
+
+            final boolean[] success = {true};
+            ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+                ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
+                List<IDevice> targets = mode >= 2 ? deviceService.getOnlineDevices() : new ArrayList<>();
+                IDevice selectedDevice = getSelectedDevice();
+                if (mode < 2 && selectedDevice != null) {
+                    targets.add(selectedDevice);
+                }
+                List<DeviceController> controllers = new ArrayList<>();
+                for (IDevice device : targets) {
+                    setupDevice(device);
+                    controllers.add(new DeviceController(device, deviceService.getControllerOptions()));
+                }
+                if (!controllers.isEmpty()) {
+                    success[0] = SessionReplayer.replay(controllers, session, mode % 2 == 0, getAppIds(project));
                 }
+            }, resourceBundle.getString("session.title"), false, project);
+
+            if (!success[0]) {
+                Messages.showWarningDialog(resourceBundle.getString("session.replay.failed"), resourceBundle.getString("session.title"));
             }
-            calculatedCoords = "" + (int) (rect.x + rect.width * percentX) + " " + (int) (rect.y + rect.height * percentY);
+        });
 
-            commandText = commandText.substring(0, idx) + calculatedCoords + commandText.substring(idx + sb.length());
-        }
+        screenPreview = new ScreenPreviewPanel();
+        viewInspector = new ViewInspector(screenPreview, () -> {
+            IDevice device = getSelectedDevice();
+            return device != null ? new DeviceController(device, deviceService.getControllerOptions()) : null;
+        }, resourceBundle.getString("inspect.tooltip"), resourceBundle.getString("inspect.copy"));
 
-        return commandText;
+        JPanel framePanel = new JPanel(new BorderLayout());
+        framePanel.add(panel, BorderLayout.NORTH);
+        framePanel.add(screenPreview, BorderLayout.CENTER);
+        return framePanel;
     }
 
-    public static boolean wildcardMatch(final String toMatch, final String value) {
-        StringBuilder patternStringBuilder = new StringBuilder();
-        for (final char c : toMatch.toCharArray()) {
-            switch (c) {
-                case '?':
-                    patternStringBuilder.append(".?");
-                    break;
-                case '*':
-                    patternStringBuilder.append(".*");
-                    break;
-                default:
-                    patternStringBuilder.append(Pattern.quote(String.valueOf(c)));
-                    break;
+    private static List<String> getAppIds(@NotNull Project project) {
+        ArrayList<String> appIds = new ArrayList<String>();
+        List<AndroidFacet> androidFacets = ProjectFacetManager.getInstance(project).getFacets(AndroidFacet.ID);
+        if (androidFacets != null) {
+            for (AndroidFacet facet : androidFacets) {
+                AndroidFacetConfiguration facetConfig = facet.getConfiguration();
+                if (!facetConfig.isLibraryProject()) {
+                    AndroidModel androidModel = facetConfig.getModel();
+                    if (androidModel != null) {
+                        String appId = androidModel.getApplicationId();
+                        appIds.add(appId);
+                    }
+                }
             }
         }
-        Pattern pattern = Pattern.compile(patternStringBuilder.toString());
-        return pattern.matcher(value).matches();
+        return appIds;
+    }
+
+    static String toFileName(String serial) {
+        return serial.replaceAll("[^A-Za-z0-9._-]", "_");
     }
 
     private void updateFromDevice() {
@@ -602,17 +737,16 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
 
                 setupDevice(selectedDevice);
 
-                String debugLayoutProperty = getSysPropFromDevice("debug.layout", selectedDevice);
-                if ("true".equals(debugLayoutProperty)) {
-                    showLayoutBounds.setSelected(true);
-                } else {
-                    showLayoutBounds.setSelected(false);
+                Map<DeveloperToggle, Boolean> states = new HashMap<>();
+                for (DeveloperToggle toggle : DeveloperToggle.ALL) {
+                    states.put(toggle, toggle.isOn(selectedDevice));
                 }
+                SwingUtilities.invokeLater(() -> updateToggleCheckBoxes(states));
 
-                String deviceLocale = getSysPropFromDevice("persist.sys.locale", selectedDevice);
+                String deviceLocale = DeviceProperties.get(selectedDevice, "persist.sys.locale");
                 int i = 0;
                 for (LocaleData ld : LOCALES) {
-                    if (deviceLocale != null && deviceLocale.startsWith(ld.language) && deviceLocale.endsWith(ld.county)) {
+                    if (ld.matches(deviceLocale)) {
                         final int toSelect = i;
                         SwingUtilities.invokeLater(() -> localeChooser.setSelectedIndex(toSelect));
 
@@ -628,174 +762,125 @@ public class ToolWindowFactory implements com.intellij.openapi.wm.ToolWindowFact
         }, resourceBundle.getString("initializing.device.message"), false, null);
     }
 
-    private String getSysPropFromDevice(String propName, IDevice selectedDevice) {
-        try {
-            return selectedDevice.getSystemProperty(propName).get();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+    /**
+     * Switches the toggles in one go, the check boxes show the state of the device afterwards
+     */
+    private void applyToggles(Map<DeveloperToggle, Boolean> states) {
+        Map<DeveloperToggle, Boolean> shown = new HashMap<>(states);
+        ProgressManager.getInstance().runProcessWithProgressSynchronously(() -> {
+            ProgressManager.getInstance().getProgressIndicator().setIndeterminate(true);
+            userAction = true;
+            DeviceController controller = getController();
+            if (controller != null && !controller.applyToggles(states)) {
+                // show what the device actually has, the controller put the values read back into the cache
+                for (DeveloperToggle toggle : states.keySet()) {
+                    shown.put(toggle, toggle.isOn(controller.getDevice()));
+                }
+            }
+            userAction = false;
+        }, resourceBundle.getString("setting.values.title"), false, null);
+        updateToggleCheckBoxes(shown);
+    }
+
+    private void updateToggleCheckBoxes(Map<DeveloperToggle, Boolean> states) {
+        for (Map.Entry<DeveloperToggle, Boolean> entry : states.entrySet()) {
+            toggleCheckBoxes.get(entry.getKey()).setSelected(entry.getValue());
+        }
+    }
+
+    private void setTogglesEnabled(boolean enabled) {
+        for (JBCheckBox checkBox : toggleCheckBoxes.values()) {
+            checkBox.setEnabled(enabled);
         }
-        return null;
+        profileChooser.setEnabled(enabled);
     }
 
     private void disableAll() {
-        showLayoutBounds.setEnabled(false);
+        setTogglesEnabled(false);
         localeChooser.setEnabled(false);
         goToActivityButton.setEnabled(false);
         inputOnDeviceButton.setEnabled(false);
+        inputOnAllDevicesButton.setEnabled(false);
+        replaySessionButton.setEnabled(false);
         clearDataButton.setEnabled(false);
         killProcessButton.setEnabled(false);
+        localeSweepButton.setEnabled(false);
+        mirrorAppDataButton.setEnabled(false);
+        saveSnapshotButton.setEnabled(false);
+        restoreSnapshotButton.setEnabled(false);
+        livePreview.setEnabled(false);
+        updateScreenCapture();
     }
 
     private void enableAll() {
-        showLayoutBounds.setEnabled(true);
+        setTogglesEnabled(true);
         localeChooser.setEnabled(true);
         goToActivityButton.setEnabled(true);
         inputOnDeviceButton.setEnabled(true);
+        inputOnAllDevicesButton.setEnabled(true);
+        replaySessionButton.setEnabled(true);
         clearDataButton.setEnabled(true);
         killProcessButton.setEnabled(true);
+        localeSweepButton.setEnabled(true);
+        mirrorAppDataButton.setEnabled(true);
+        saveSnapshotButton.setEnabled(true);
+        restoreSnapshotButton.setEnabled(true);
+        livePreview.setEnabled(true);
+        updateScreenCapture();
     }
 
-    private void setupDevice(final IDevice selectedDevice) {
-        try {
-            installEnablerApk(selectedDevice);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private void updateDeviceComboBox() {
-        devices.removeActionListener(deviceSelectedListener);
-        String selectedDevice = (String) devices.getSelectedItem();
-
-        IDevice[] devs = adBridge.getDevices();
-        Vector devicesList = new Vector();
-        devicesList.add("-- none --");
-        for (IDevice device : devs) {
-            devicesList.add(device.toString());
-        }
-        devices.setModel(new DefaultComboBoxModel<>(devicesList));
-
-        if (devicesList.size() == 1) {
-            disableAll();
-        } else {
-            devices.setSelectedItem(selectedDevice);
-
-            devices.setSelectedItem(devices.getSelectedItem());
-            if (devices.getSelectedIndex() == 0) {
-                disableAll();
-            } else {
-                enableAll();
+    private void updateScreenCapture() {
+        IDevice device = livePreview.isEnabled() && livePreview.isSelected() ? getSelectedDevice() : null;
+        inspectViews.setEnabled(device != null);
+        viewInspector.setEnabled(device != null && inspectViews.isSelected());
+        if (screenCapture != null) {
+            if (screenCapture.getDevice() == device) {
+                return;
             }
+            screenCapture.stop();
+            screenCapture = null;
         }
 
-        devices.addActionListener(deviceSelectedListener);
-    }
-
-    private String executeShellCommand(String cmd, boolean doPoke) {
-        if (!userAction) {
-            return null;
-        }
-
-        if (devices.getSelectedIndex() == 0) {
-            return null;
-        }
-
-        String res = null;
-        String selDevice = (String) devices.getSelectedItem();
-        for (IDevice device : adBridge.getDevices()) {
-            if (selDevice.equals(device.toString())) {
-
-                try {
-                    rcv.reset();
-                    device.executeShellCommand(cmd, rcv);
-                    res = rcv.getResult();
-                    if (doPoke) {
-                        device.executeShellCommand("am start -a POKESYSPROPS", rcv);
-                    }
-                } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException | IOException e1) {
-                    e1.printStackTrace();
-                }
-
-            }
+        if (device != null) {
+            screenCapture = new ScreenCapture(device, screenPreview::showFrame);
+            screenCapture.start();
+        } else {
+            screenPreview.clear();
         }
-        return res;
     }
 
-    private void installEnablerApk(IDevice device) throws IOException {
-        String serial = "<"+device.getSerialNumber()+">";
-        String alreadyInstalledOn = storage.getInstalledOnDevices();
-        if(alreadyInstalledOn==null){
-            alreadyInstalledOn = "";
-        }
-        if(alreadyInstalledOn.contains(serial)){
-            return;
-        }
-        storage.setInstalledOnDevices(alreadyInstalledOn+serial);
-
-        // TODO no need to create the tmp file over and over again
-        File tmpfile = File.createTempFile("enabler", "apk");
-        FileOutputStream fos = null;
-        InputStream is = null;
-        try {
-            is = getClass().getResourceAsStream("/de/mobilej/plugin/adc/enabler.apk");
-            fos = new FileOutputStream(tmpfile);
-            byte[] buffer = new byte[4096];
-            int len = 0;
-            while ((len = is.read(buffer)) > 0) {
-                fos.write(buffer, 0, len);
-            }
-        } finally {
-            if (fos != null) {
-                fos.flush();
-                fos.close();
-            }
-            if (is != null) {
-                is.close();
-            }
-        }
-
-        try {
-            device.installPackage(tmpfile.getAbsolutePath(), true);
-        } catch (InstallException ie) {
-            ie.printStackTrace();
-        }
-
-        try {
-            device.executeShellCommand("pm grant mobilej.de.systemproppoker android.permission.CHANGE_CONFIGURATION", rcv);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    private void setupDevice(final IDevice selectedDevice) {
+        deviceService.setupDevice(selectedDevice);
     }
 
-    private IDevice getSelectedDevice() {
-        String selDevice = (String) devices.getSelectedItem();
-        for (IDevice device : adBridge.getDevices()) {
-            if (selDevice.equals(device.toString())) {
-                return device;
-            }
+    /**
+     * @return a controller for the selected device, null if there is none or the call wasn't triggered by the user
+     */
+    private DeviceController getController() {
+        IDevice device = getSelectedDevice();
+        if (!userAction || device == null) {
+            return null;
         }
-        return null;
+        DeviceController controller = new DeviceController(device, deviceService.getControllerOptions());
+        controller.setRecorder(sessionRecorder);
+        return controller;
     }
 
     /**
-     * Holder for Locale Data
+     * @return the file of the stopped recording or null if there was none
      */
-    private static class LocaleData {
-        final String name;
-        final String language;
-        final String county;
-
-        LocaleData(String name, String language, String county) {
-            this.name = name;
-            this.language = language;
-            this.county = county;
+    private File stopRecording() {
+        SessionRecorder recorder = sessionRecorder;
+        sessionRecorder = null;
+        if (recorder == null) {
+            return null;
         }
+        recorder.close();
+        return recorder.getFile();
+    }
 
-        @Override
-        public String toString() {
-            return name;
-        }
+    private IDevice getSelectedDevice() {
+        return deviceModel.getSelectedDevice();
     }
 
 }
\ No newline at end of file
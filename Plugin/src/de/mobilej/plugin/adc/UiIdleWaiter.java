@@ -0,0 +1,109 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import com.android.ddmlib.IDevice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Waits until the UI of a device settled instead of sleeping for a fixed time.
+ *
+ * The UI is considered idle if the window manager reports no pending or running app transition and neither the
+ * focused window nor the resumed activity changed for a short period. Only the few relevant lines are sampled
+ * (grep runs on the device), dumping the whole window manager state or view hierarchy takes far too long to
+ * poll.
+ */
+class UiIdleWaiter {
+
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final long QUIET_PERIOD_MS = 150;
+    /**
+     * Pause between two samples - sampling back to back would keep the device busy and delay the UI itself
+     */
+    private static final long POLL_INTERVAL_MS = 50;
+    private static final String SAMPLE_COMMAND = "dumpsys window | grep -E 'mCurrentFocus=|mAppTransitionState='; "
+            + "dumpsys activity activities | grep ResumedActivity";
+
+    private static class Sample {
+        boolean transitionIdle = true;
+        long hash;
+    }
+
+    private UiIdleWaiter() {
+    }
+
+    /**
+     * Blocks until the UI is idle or the timeout expired.
+     *
+     * @return true if the UI is idle, false on timeout
+     */
+    static boolean waitForIdle(IDevice device, long timeoutMs) throws InterruptedException {
+        return waitForIdle(ShellExecutor.DEFAULT, device, timeoutMs);
+    }
+
+    /**
+     * Like {@link #waitForIdle(IDevice, long)} but samples through the given executor
+     */
+    static boolean waitForIdle(ShellExecutor executor, IDevice device, long timeoutMs) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long stableSince = start;
+        Long lastHash = null;
+
+        while (true) {
+            String output = executor.execute(device, SAMPLE_COMMAND, ShellExecutor.Kind.SHORT);
+            Sample sample = output != null ? parseSample(output) : null;
+            long now = System.currentTimeMillis();
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (sample != null) {
+                if (lastHash == null || sample.hash != lastHash) {
+                    lastHash = sample.hash;
+                    stableSince = now;
+                } else if (sample.transitionIdle && now - stableSince >= QUIET_PERIOD_MS) {
+                    return true;
+                }
+            }
+
+            if (now - start >= timeoutMs) {
+                return false;
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL_MS, timeoutMs - (now - start)));
+        }
+    }
+
+    private static Sample parseSample(String output) {
+        Sample sample = new Sample();
+        CRC32 crc = new CRC32();
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.contains("mAppTransitionState=")) {
+                // IDLE and TIMEOUT mean there is nothing going on, READY and RUNNING mean a transition is pending
+                sample.transitionIdle &= line.contains("APP_STATE_IDLE") || line.contains("APP_STATE_TIMEOUT");
+            } else if (line.contains("mCurrentFocus=")) {
+                sample.transitionIdle &= !line.contains("mCurrentFocus=null");
+                crc.update(line.getBytes(StandardCharsets.UTF_8));
+            } else if (line.contains("ResumedActivity")) {
+                crc.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        sample.hash = crc.getValue();
+        return sample;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.util.XmlPullUtil;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * All views of a uiautomator dump in an R-tree, answering which view is at a point without looking at every view.
+ *
+ * The tree is packed once per dump (sort-tile-recursive): views are sorted into vertical slices by their center,
+ * every slice is cut into leaves of {@link #NODE_CAPACITY} views by their center and the same is done with the
+ * leaves until a single root is left. A hit test only descends into nodes containing the point.
+ */
+class ViewIndex {
+
+    private static final int NODE_CAPACITY = 16;
+
+    static class ViewNode {
+        final Rectangle bounds;
+        final String resId;
+        final String className;
+        final String text;
+        final int depth;
+        /**
+         * Position in the dump, views later in the dump are drawn on top of earlier ones
+         */
+        final int order;
+        final ViewNode parent;
+
+        ViewNode(Rectangle bounds, String resId, String className, String text, int depth, int order, ViewNode parent) {
+            this.bounds = bounds;
+            this.resId = resId;
+            this.className = className;
+            this.text = text;
+            this.depth = depth;
+            this.order = order;
+            this.parent = parent;
+        }
+
+        /**
+         * @return the view or its closest ancestor having a resource id, null if there is none
+         */
+        ViewNode getIdentified() {
+            ViewNode node = this;
+            while (node != null && (node.resId == null || node.resId.isEmpty())) {
+                node = node.parent;
+            }
+            return node;
+        }
+
+        /**
+         * @return a reference to the view (or its closest ancestor having a resource id) usable in input scripts
+         * like "@my.app:id/button", null if there is none
+         */
+        String getReference() {
+            ViewNode identified = getIdentified();
+            return identified != null ? "@" + identified.resId : null;
+        }
+
+        boolean contains(int x, int y) {
+            return x >= bounds.x && y >= bounds.y && x < bounds.x + bounds.width && y < bounds.y + bounds.height;
+        }
+    }
+
+    private static class Node {
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        List<Node> children;
+        List<ViewNode> views;
+
+        void add(int left, int top, int right, int bottom) {
+            this.left = Math.min(this.left, left);
+            this.top = Math.min(this.top, top);
+            this.right = Math.max(this.right, right);
+            this.bottom = Math.max(this.bottom, bottom);
+        }
+
+        boolean contains(int x, int y) {
+            return x >= left && y >= top && x < right && y < bottom;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    ViewIndex(List<ViewNode> views) {
+        size = views.size();
+        root = views.isEmpty() ? null : build(views);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the deepest view containing the point (the one drawn on top if several are equally deep) or null
+     */
+    ViewNode findAt(int x, int y) {
+        if (root == null) {
+            return null;
+        }
+
+        ViewNode best = null;
+
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!node.contains(x, y)) {
+                continue;
+            }
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    stack.push(child);
+                }
+                continue;
+            }
+            for (ViewNode view : node.views) {
+                if (view.contains(x, y) && (best == null || view.depth > best.depth
+                        || (view.depth == best.depth && view.order > best.order))) {
+                    best = view;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static Node build(List<ViewNode> views) {
+        List<Node> level = new ArrayList<>();
+        for (List<ViewNode> group : tile(new ArrayList<>(views),
+                view -> 2 * view.bounds.x + view.bounds.width, view -> 2 * view.bounds.y + view.bounds.height)) {
+            Node leaf = new Node();
+            leaf.views = group;
+            for (ViewNode view : group) {
+                leaf.add(view.bounds.x, view.bounds.y, view.bounds.x + view.bounds.width, view.bounds.y + view.bounds.height);
+            }
+            level.add(leaf);
+        }
+
+        while (level.size() > 1) {
+            List<Node> parents = new ArrayList<>();
+            for (List<Node> group : tile(level, node -> node.left + node.right, node -> node.top + node.bottom)) {
+                Node parent = new Node();
+                parent.children = group;
+                for (Node child : group) {
+                    parent.add(child.left, child.top, child.right, child.bottom);
+                }
+                parents.add(parent);
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Cuts the items into groups of at most {@link #NODE_CAPACITY} items lying close to each other
+     */
+    private static <T> List<List<T>> tile(List<T> items, ToIntFunction<T> centerX, ToIntFunction<T> centerY) {
+        int pages = (items.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceSize = (int) Math.ceil(Math.sqrt(pages)) * NODE_CAPACITY;
+
+        List<List<T>> groups = new ArrayList<>();
+        items.sort(Comparator.comparingInt(centerX));
+        for (int i = 0; i < items.size(); i += sliceSize) {
+            List<T> slice = new ArrayList<>(items.subList(i, Math.min(items.size(), i + sliceSize)));
+            slice.sort(Comparator.comparingInt(centerY));
+            for (int j = 0; j < slice.size(); j += NODE_CAPACITY) {
+                groups.add(new ArrayList<>(slice.subList(j, Math.min(slice.size(), j + NODE_CAPACITY))));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Parses the output of "uiautomator dump", keeping every node with its place in the hierarchy
+     */
+    static ViewIndex parse(Reader dump) throws IOException {
+        List<ViewNode> views = new ArrayList<>();
+        Deque<ViewNode> parents = new ArrayDeque<>();
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(dump);
+
+            int eventType;
+            while ((eventType = xpp.getEventType()) != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG && "node".equals(xpp.getName())) {
+                    ViewNode view = new ViewNode(parseBounds(XmlPullUtil.getAttributeValue(xpp, "bounds")),
+                            XmlPullUtil.getAttributeValue(xpp, "resource-id"),
+                            XmlPullUtil.getAttributeValue(xpp, "class"),
+                            XmlPullUtil.getAttributeValue(xpp, "text"),
+                            parents.size(), views.size(), parents.peek());
+                    views.add(view);
+                    parents.push(view);
+                } else if (eventType == XmlPullParser.END_TAG && "node".equals(xpp.getName())) {
+                    parents.pop();
+                } else if (eventType == XmlPullParser.END_TAG && xpp.getDepth() == 1) {
+                    // end of the root element - don't parse whatever might follow the document
+                    break;
+                }
+                xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        }
+        return new ViewIndex(views);
+    }
+
+    /**
+     * @param bounds bounds as written by uiautomator like "[0,72][1080,240]"
+     */
+    static Rectangle parseBounds(String bounds) {
+        if (bounds == null) {
+            return new Rectangle(0, 0, 0, 0);
+        }
+        String[] coords = bounds.replace("][", ",").replace("[", "").replace("]", "").split(",");
+        int x1 = Integer.parseInt(coords[0]);
+        int y1 = Integer.parseInt(coords[1]);
+        int x2 = Integer.parseInt(coords[2]);
+        int y2 = Integer.parseInt(coords[3]);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+}
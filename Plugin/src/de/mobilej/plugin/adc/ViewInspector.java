@@ -0,0 +1,149 @@
+/*
+ *    Copyright (C) 2016 Björn Quentin
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.mobilej.plugin.adc;
+
+import java.awt.Point;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.MessageFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Shows which view is under the mouse in the {@link ScreenPreviewPanel}: hovering outlines the deepest view at that
+ * point and shows its details as tool tip, clicking copies its id reference (like "@my.app:id/button") for use in
+ * input scripts.
+ *
+ * The views are dumped in the background and put into a {@link ViewIndex} so hit tests are cheap while moving the
+ * mouse. A new dump is started once the previewed screen changed.
+ */
+class ViewInspector extends MouseAdapter {
+
+    private final ScreenPreviewPanel preview;
+    private final Supplier<DeviceController> controllers;
+    private final String toolTipFormat;
+    private final String copyFormat;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ADC view inspector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ViewIndex index;
+    private volatile long indexedFrame = -1;
+    private volatile boolean loading = false;
+    private volatile boolean enabled = false;
+
+    /**
+     * @param controllers supplies the controller of the previewed device, null if there is none
+     * @param toolTipFormat HTML format of the tool tip, {0} is the class, {1} the text and {2} the copy hint
+     * @param copyFormat HTML format of the copy hint, {0} is the reference
+     */
+    ViewInspector(ScreenPreviewPanel preview, Supplier<DeviceController> controllers, String toolTipFormat, String copyFormat) {
+        this.preview = preview;
+        this.controllers = controllers;
+        this.toolTipFormat = toolTipFormat;
+        this.copyFormat = copyFormat;
+        preview.addMouseListener(this);
+        preview.addMouseMotionListener(this);
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        index = null;
+        indexedFrame = -1;
+        preview.setHighlight(null);
+        preview.setToolTipText(null);
+    }
+
+    void dispose() {
+        setEnabled(false);
+        preview.removeMouseListener(this);
+        preview.removeMouseMotionListener(this);
+        loader.shutdownNow();
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        if (enabled) {
+            refreshIfStale();
+            show(e.getPoint(), false);
+        }
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        if (enabled) {
+            show(e.getPoint(), true);
+        }
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+        preview.setHighlight(null);
+    }
+
+    private void show(Point point, boolean copy) {
+        ViewIndex current = index;
+        Point devicePoint = preview.toDevice(point);
+        ViewIndex.ViewNode view = current != null && devicePoint != null ? current.findAt(devicePoint.x, devicePoint.y) : null;
+        if (view == null) {
+            preview.setHighlight(null);
+            preview.setToolTipText(null);
+            return;
+        }
+
+        String reference = view.getReference();
+        preview.setHighlight(view.bounds);
+        preview.setToolTipText(MessageFormat.format(toolTipFormat, escape(view.className), escape(view.text),
+                reference != null ? MessageFormat.format(copyFormat, escape(reference)) : ""));
+        if (copy && reference != null) {
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(reference), null);
+        }
+    }
+
+    private static String escape(String text) {
+        return text == null ? "" : text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Starts a new dump if the screen changed since the last one and no dump is running
+     */
+    private void refreshIfStale() {
+        long frame = preview.getFrameCount();
+        if (loading || frame == indexedFrame) {
+            return;
+        }
+        DeviceController controller = controllers.get();
+        if (controller == null) {
+            return;
+        }
+
+        loading = true;
+        loader.submit(() -> {
+            try {
+                ViewIndex dumped = controller.dumpViewIndex();
+                if (dumped != null && enabled) {
+                    index = dumped;
+                    indexedFrame = frame;
+                }
+            } finally {
+                loading = false;
+            }
+        });
+    }
+}